@@ -0,0 +1,531 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import ch.pam_exchange.securetomcat.client.JweClient;
+
+/**
+ * Load generator for the echoApp, using the tokens of MessageEncode.
+ *
+ * The tokens are minted before the run. Requests are sent at a fixed rate
+ * over a number of connections. The send time of each request is planned 
+ * in advance (open loop), the latency is measured from the planned time. 
+ * A slow response delays the following requests of the connection, this
+ * waiting time is part of their latency and not hidden (coordinated 
+ * omission). The service time is measured from the actual send.
+ *
+ * A part of the requests can be replayed or expired tokens, which the
+ * echoApp must reject.
+ *
+ * Slow clients can be added to the load. A slow client sends the request
+ * headers and then the body one byte at a time, a connection is kept busy
+ * for a long time with little traffic. A slow client closed by the server 
+ * is replaced. The report shows how many slow clients the server held 
+ * open during the run, and how the requests sent at the same time were 
+ * handled. EchoApp needs a thread for each slow client, EchoAsync does not.
+ *
+ * Usage: LoadGenerator [-option value] ...
+ *   -url          echoApp URL, default http://localhost:8080/echoApp/EchoApp
+ *   -alias        PAM alias of the shared secret, default as MessageEncode
+ *   -rate         Requests per second, default 100
+ *   -connections  Concurrent connections, default 8
+ *   -duration     Measured time (seconds), default 30
+ *   -warmup       Time (seconds) before measuring, default 5
+ *   -replay       Part of requests with a replayed token (0-1), default 0
+ *   -expired      Part of requests with an expired token (0-1), default 0
+ *   -size         Length of userData, default 64
+ *   -kid          Send the kid header (true/false), default true
+ *   -timeout      Connect and read timeout (ms), default 10000
+ *   -slow         Number of slow clients, default 0
+ *   -trickle      Time (ms) between the bytes sent by a slow client, default 1000
+ *
+ * Exit code 1 if a request failed, was not sent (late by more than the 
+ * timeout) or a token was not handled as expected.
+ */
+public class LoadGenerator {
+
+	private static final byte FRESH= 0;
+	private static final byte REPLAY= 1;
+	private static final byte EXPIRED= 2;
+
+	private static final String MSG_ERR_TOKEN_REPLAY= "*** ERROR - Token replay ***";
+	private static final String MSG_ERR_TOKEN_EXPIRED= "*** ERROR - Token has expired ***";
+
+	private static final long TOKEN_LIFETIME= 60;		// Seconds a token is valid before and after its planned send time
+	private static final int EXPIRED_TOKENS= 64;
+	private static final long LATE_NANOS= 1000000;		// A request starting more than 1 ms after its planned time is late
+	private static final int SLOW_BODY= 4096;		// Body length announced by a slow client
+
+	private final URL url;
+	private final int connections;
+	private final int timeout;
+	private final long intervalNanos;
+	private final int warmupRequests;
+	private final byte[] kinds;
+	private final String[] tokens;
+	private final String[] expiredTokens;
+	private final AtomicLong next= new AtomicLong();
+	private final SlowClients slowClients;
+	private long start;
+
+	public static void main(String[] args) {
+		try {
+			LoadGenerator generator= new LoadGenerator(parseOptions(args));
+			System.exit(generator.run() ? 0 : 1);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			System.exit(2);
+		}
+	}
+
+	private LoadGenerator(Map<String,String> options) throws Exception {
+		url= URI.create(options.getOrDefault("url", "http://localhost:8080/echoApp/EchoApp")).toURL();
+		String alias= options.getOrDefault("alias", MessageEncode.PROPERTY_JWT_ALIAS);
+		double rate= Double.parseDouble(options.getOrDefault("rate", "100"));
+		connections= Integer.parseInt(options.getOrDefault("connections", "8"));
+		long duration= Long.parseLong(options.getOrDefault("duration", "30"));
+		long warmup= Long.parseLong(options.getOrDefault("warmup", "5"));
+		double replay= Double.parseDouble(options.getOrDefault("replay", "0"));
+		double expired= Double.parseDouble(options.getOrDefault("expired", "0"));
+		int size= Integer.parseInt(options.getOrDefault("size", "64"));
+		boolean withKid= Boolean.parseBoolean(options.getOrDefault("kid", "true"));
+		timeout= Integer.parseInt(options.getOrDefault("timeout", "10000"));
+		int slow= Integer.parseInt(options.getOrDefault("slow", "0"));
+		long trickle= Long.parseLong(options.getOrDefault("trickle", "1000"));
+
+		intervalNanos= (long)(1000000000L / rate);
+		warmupRequests= (int)(warmup * rate);
+		int total= warmupRequests + (int)(duration * rate);
+		System.out.println("[LOAD] url= "+url+", rate= "+rate+"/s, connections= "+connections+", requests= "+total
+				+((slow > 0) ? ", slow clients= "+slow+", trickle= "+trickle+" ms" : ""));
+
+		// The connections are kept alive, one per thread
+		System.setProperty("http.maxConnections", Integer.toString(connections));
+
+		String sharedSecret= MessageEncode.getA2APassword(alias, false);
+		if (sharedSecret.startsWith("***")) {
+			throw new IllegalStateException("Shared secret not available: '"+sharedSecret+"'");
+		}
+		Key key= JweClient.deriveKey(sharedSecret);
+		String kid= withKid ? JweClient.keyId(key) : null;
+		String userData= "x".repeat(size);
+
+		Random rnd= new Random(1);
+		kinds= new byte[total];
+		for (int i= 0; i < total; i++) {
+			double r= rnd.nextDouble();
+			kinds[i]= (r < replay) ? REPLAY : (r < replay + expired) ? EXPIRED : FRESH;
+		}
+
+		long mintStart= System.nanoTime();
+		long now= System.currentTimeMillis() / 1000;
+		tokens= IntStream.range(0, total).parallel().mapToObj(i -> {
+			long planned= now + (long)((double)i * intervalNanos / 1000000000L);
+			return encode(key, kid, userData, planned - TOKEN_LIFETIME, planned + TOKEN_LIFETIME);
+		}).toArray(String[]::new);
+		expiredTokens= IntStream.range(0, EXPIRED_TOKENS).mapToObj(i -> 
+			encode(key, kid, userData, now - 3 * TOKEN_LIFETIME, now - TOKEN_LIFETIME)
+		).toArray(String[]::new);
+		long mintSeconds= (System.nanoTime() - mintStart) / 1000000000L;
+		System.out.println("[LOAD] tokens minted in "+mintSeconds+" s");
+		if (mintSeconds > TOKEN_LIFETIME / 2) {
+			System.out.println("[LOAD] WARNING - minting took long, tokens may expire before they are sent");
+		}
+		slowClients= (slow > 0) ? new SlowClients(slow, trickle) : null;
+	}
+
+	private static String encode(Key key, String kid, String userData, long nbf, long exp) {
+		try {
+			return JweClient.encode(key, kid, userData, nbf, exp);
+		}
+		catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Send all requests and print the results. Returns false if a request
+	 * failed or a token was not handled as expected.
+	 */
+	private boolean run() throws InterruptedException {
+		if (slowClients != null) {
+			slowClients.open();
+		}
+		List<Worker> workers= new ArrayList<>();
+		start= System.nanoTime() + 100000000L;		// start in 100 ms, after all threads are started
+		if (slowClients != null) {
+			slowClients.start();
+		}
+		for (int i= 0; i < connections; i++) {
+			Worker w= new Worker();
+			w.setName("loadgenerator-"+i);
+			workers.add(w);
+			w.start();
+		}
+		for (Worker w : workers) {
+			w.join();
+		}
+		long end= System.nanoTime();
+		if (slowClients != null) {
+			slowClients.close();
+		}
+		return report(workers, end);
+	}
+
+	private final class Worker extends Thread {
+		private long[] latencies= new long[1024];
+		private long[] serviceTimes= new long[1024];
+		private int count= 0;
+		private long ok, replayRejected, expiredRejected, errors, unexpected, late, maxLate, dropped;
+		private long firstPlanned, lastEnd;
+		private String lastFresh;
+
+		@Override
+		public void run() {
+			for (long i= next.getAndIncrement(); i < kinds.length; i= next.getAndIncrement()) {
+				long planned= start + i * intervalNanos;
+				for (long wait= planned - System.nanoTime(); wait > 0; wait= planned - System.nanoTime()) {
+					LockSupport.parkNanos(wait);
+				}
+
+				// A request which is late by more than the timeout is not sent, the server is saturated
+				if (System.nanoTime() - planned > timeout * 1000000L) {
+					tokens[(int)i]= null;
+					if (i >= warmupRequests) {
+						dropped++;
+					}
+					continue;
+				}
+
+				// A replay sends a token this connection sent before, it was processed already
+				byte kind= kinds[(int)i];
+				String token;
+				if (kind == EXPIRED) {
+					token= expiredTokens[(int)(i % expiredTokens.length)];
+				}
+				else if (kind == REPLAY && lastFresh != null) {
+					token= lastFresh;
+				}
+				else {
+					kind= FRESH;
+					token= tokens[(int)i];
+					lastFresh= token;
+				}
+				tokens[(int)i]= null;
+
+				long sent= System.nanoTime();
+				String response= post(token);
+				long done= System.nanoTime();
+
+				if (i < warmupRequests) {
+					continue;
+				}
+				if (count == 0) {
+					firstPlanned= planned;
+				}
+				lastEnd= done;
+				if (count == latencies.length) {
+					latencies= Arrays.copyOf(latencies, count * 2);
+					serviceTimes= Arrays.copyOf(serviceTimes, count * 2);
+				}
+				latencies[count]= done - planned;
+				serviceTimes[count]= done - sent;
+				count++;
+				if (sent - planned > LATE_NANOS) {
+					late++;
+					maxLate= Math.max(maxLate, sent - planned);
+				}
+				count(kind, response);
+			}
+		}
+
+		private void count(byte kind, String response) {
+			if (response == null) {
+				errors++;
+			}
+			else if (MSG_ERR_TOKEN_REPLAY.equals(response)) {
+				if (kind == REPLAY) replayRejected++; else unexpected++;
+			}
+			else if (MSG_ERR_TOKEN_EXPIRED.equals(response)) {
+				if (kind == EXPIRED) expiredRejected++; else unexpected++;
+			}
+			else if (response.startsWith("***")) {
+				errors++;
+			}
+			else {
+				if (kind == FRESH) ok++; else unexpected++;
+			}
+		}
+
+		/*
+		 * POST the token, the response is read completely so the connection 
+		 * is kept alive. Returns null if the request failed.
+		 */
+		private String post(String token) {
+			HttpURLConnection con= null;
+			try {
+				con= (HttpURLConnection)url.openConnection();
+				con.setConnectTimeout(timeout);
+				con.setReadTimeout(timeout);
+				con.setRequestMethod("POST");
+				con.setDoOutput(true);
+				byte[] body= token.getBytes(StandardCharsets.US_ASCII);
+				con.setFixedLengthStreamingMode(body.length);
+				try (OutputStream out= con.getOutputStream()) {
+					out.write(body);
+				}
+				int status= con.getResponseCode();
+				InputStream in= (status < 400) ? con.getInputStream() : con.getErrorStream();
+				String response= (in == null) ? "" : readAll(in);
+				return (status == 200) ? response.trim() : null;
+			}
+			catch (IOException e) {
+				if (con != null) {
+					con.disconnect();
+				}
+				return null;
+			}
+		}
+	}
+
+	/*
+	 * Slow clients, all served by one thread. Each sends one byte of its
+	 * body per trickle interval, the body is never complete during a run.
+	 */
+	private final class SlowClients extends Thread {
+		private final int count;
+		private final long trickleMillis;
+		private final byte[] headers;
+		private final List<Socket> sockets= new ArrayList<>();
+		private volatile boolean stop;
+		private int minOpen= Integer.MAX_VALUE;
+		private long closed, connectFailed;
+
+		SlowClients(int count, long trickleMillis) {
+			this.count= count;
+			this.trickleMillis= trickleMillis;
+			String path= url.getFile().isEmpty() ? "/" : url.getFile();
+			String host= (url.getPort() < 0) ? url.getHost() : url.getHost()+":"+url.getPort();
+			this.headers= ("POST "+path+" HTTP/1.1\r\nHost: "+host+"\r\nContent-Type: text/plain\r\nContent-Length: "+SLOW_BODY+"\r\n\r\n")
+					.getBytes(StandardCharsets.US_ASCII);
+			setName("loadgenerator-slow");
+			setDaemon(true);
+		}
+
+		/*
+		 * Open the slow clients before the run, a failed connect is counted
+		 */
+		void open() {
+			long t0= System.nanoTime();
+			while (sockets.size() + connectFailed < count) {
+				connect();
+			}
+			System.out.println("[LOAD] slow clients open= "+sockets.size()+" in "+String.format("%.1f", (System.nanoTime() - t0) / 1e9)+" s, connect failed= "+connectFailed);
+		}
+
+		private boolean connect() {
+			try {
+				int port= (url.getPort() < 0) ? url.getDefaultPort() : url.getPort();
+				Socket socket= "https".equalsIgnoreCase(url.getProtocol())
+						? HttpsURLConnection.getDefaultSSLSocketFactory().createSocket()
+						: new Socket();
+				socket.connect(new InetSocketAddress(url.getHost(), port), timeout);
+				socket.getOutputStream().write(headers);
+				socket.getOutputStream().flush();
+				sockets.add(socket);
+				return true;
+			}
+			catch (IOException e) {
+				connectFailed++;
+				return false;
+			}
+		}
+
+		/*
+		 * Send a byte on each connection per interval. A connection with a
+		 * response (e.g. a timeout) or a failed write was closed by the 
+		 * server and is replaced.
+		 */
+		@Override
+		public void run() {
+			while (!stop) {
+				try {
+					Thread.sleep(trickleMillis);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				int replace= 0;
+				synchronized (this) {
+					for (int i= sockets.size() - 1; i >= 0; i--) {
+						Socket socket= sockets.get(i);
+						try {
+							if (socket.getInputStream().available() > 0) {
+								throw new IOException("response from server");
+							}
+							OutputStream out= socket.getOutputStream();
+							out.write('x');
+							out.flush();
+						}
+						catch (IOException e) {
+							closeQuietly(socket);
+							sockets.remove(i);
+							closed++;
+							replace++;
+						}
+					}
+					if (System.nanoTime() - start > 0 && !stop) {		// held during the run
+						minOpen= Math.min(minOpen, sockets.size());
+					}
+					for (int i= 0; i < replace && !stop; i++) {
+						connect();
+					}
+				}
+			}
+		}
+
+		synchronized void close() {
+			stop= true;
+			interrupt();
+			for (Socket socket : sockets) {
+				closeQuietly(socket);
+			}
+		}
+
+		void report() {
+			int held= (minOpen == Integer.MAX_VALUE) ? sockets.size() : minOpen;
+			System.out.println("[LOAD] slow clients= "+count+", held open (min)= "+held+", closed by server= "+closed+", connect failed= "+connectFailed);
+		}
+
+		private void closeQuietly(Socket socket) {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	private static String readAll(InputStream in) throws IOException {
+		try (InputStream is= in) {
+			ByteArrayOutputStream buf= new ByteArrayOutputStream();
+			is.transferTo(buf);
+			return buf.toString(StandardCharsets.UTF_8);
+		}
+	}
+
+	private boolean report(List<Worker> workers, long end) {
+		int n= 0;
+		long ok= 0, replayRejected= 0, expiredRejected= 0, errors= 0, unexpected= 0, late= 0, maxLate= 0, dropped= 0;
+		long first= Long.MAX_VALUE, last= 0;
+		for (Worker w : workers) {
+			n+= w.count;
+		}
+		long[] latencies= new long[n];
+		long[] serviceTimes= new long[n];
+		int pos= 0;
+		for (Worker w : workers) {
+			System.arraycopy(w.latencies, 0, latencies, pos, w.count);
+			System.arraycopy(w.serviceTimes, 0, serviceTimes, pos, w.count);
+			pos+= w.count;
+			ok+= w.ok;
+			replayRejected+= w.replayRejected;
+			expiredRejected+= w.expiredRejected;
+			errors+= w.errors;
+			unexpected+= w.unexpected;
+			late+= w.late;
+			maxLate= Math.max(maxLate, w.maxLate);
+			dropped+= w.dropped;
+			if (w.count > 0) {
+				first= Math.min(first, w.firstPlanned);
+				last= Math.max(last, w.lastEnd);
+			}
+		}
+		Arrays.sort(latencies);
+		Arrays.sort(serviceTimes);
+
+		double seconds= (n == 0) ? 0 : (last - first) / 1e9;
+		System.out.println("[LOAD] requests= "+n+", time= "+String.format("%.1f", seconds)+" s, throughput= "+String.format("%.1f", (seconds > 0) ? n / seconds : 0.0)+"/s");
+		System.out.println("[LOAD] latency (ms)      "+percentiles(latencies));
+		System.out.println("[LOAD] service time (ms) "+percentiles(serviceTimes));
+		System.out.println("[LOAD] ok= "+ok+", replay rejected= "+replayRejected+", expired rejected= "+expiredRejected+", errors= "+errors+", unexpected= "+unexpected);
+		if (late > 0) {
+			System.out.println("[LOAD] late starts= "+late+", max late= "+String.format("%.1f", maxLate / 1e6)+" ms, add connections if the server is not saturated");
+		}
+		if (dropped > 0) {
+			System.out.println("[LOAD] not sent= "+dropped+", late by more than the timeout");
+		}
+		if (slowClients != null) {
+			slowClients.report();
+		}
+		return errors == 0 && unexpected == 0 && dropped == 0;
+	}
+
+	private static String percentiles(long[] sorted) {
+		if (sorted.length == 0) {
+			return "-";
+		}
+		return "p50= "+ms(sorted, 0.50)+", p90= "+ms(sorted, 0.90)+", p99= "+ms(sorted, 0.99)+", p999= "+ms(sorted, 0.999)+", max= "+String.format("%.2f", sorted[sorted.length - 1] / 1e6);
+	}
+
+	private static String ms(long[] sorted, double p) {
+		int i= (int)Math.ceil(p * sorted.length) - 1;
+		return String.format("%.2f", sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6);
+	}
+
+	private static Map<String,String> parseOptions(String[] args) {
+		Map<String,String> options= new HashMap<>();
+		for (int i= 0; i < args.length; i+= 2) {
+			if (!args[i].startsWith("-") || i + 1 == args.length) {
+				throw new IllegalArgumentException("Option and value expected: "+args[i]);
+			}
+			options.put(args[i].substring(1), args[i + 1]);
+		}
+		return options;
+	}
+}
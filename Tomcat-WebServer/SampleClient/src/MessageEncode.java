@@ -32,9 +32,7 @@ import java.net.URL;
 import java.security.cert.X509Certificate;
 import java.security.GeneralSecurityException;
 import java.security.Key;
-import java.security.MessageDigest;
 import java.security.SecureRandom;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.Random;
 import javax.net.ssl.*;
@@ -45,9 +43,9 @@ import org.jose4j.jwe.ContentEncryptionAlgorithmIdentifiers;
 import org.jose4j.jwe.JsonWebEncryption;
 import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
 import org.jose4j.jwt.JwtClaims;
-import org.jose4j.keys.AesKey;
 
 //import ch.pamio.PAM;
+import ch.pam_exchange.securetomcat.client.JweClient;
 import com.cloakware.cspm.client.CSPMClient;
 
 public class MessageEncode {
@@ -57,6 +55,10 @@ public class MessageEncode {
 	
 	private static Random rnd= new Random();
 
+	private static final int A2A_MAX_TRIES= 10;
+	private static final long A2A_RETRY_DELAY= 50;		// First backoff (in ms) after 401
+	private static final long A2A_RETRY_MAX_DELAY= 500;	// Max backoff (in ms)
+
     public static void main(String[] args) {
 
     	System.out.println("--------------\njweEncode\n--------------");
@@ -79,11 +81,9 @@ public class MessageEncode {
 				return;
 			}
     		
-	        // Generate symmetric 256 bit using SHA256.
-	        MessageDigest sha= MessageDigest.getInstance("SHA-256");
-	        // Use first 128 bits as AES key
-	        byte[] sharedKey= sha.digest(sharedSecret.getBytes("UTF-8"));
-	        Key key = new AesKey( Arrays.copyOfRange( sharedKey, 0, 16) );
+	        Key key= JweClient.deriveKey(sharedSecret);
+	        String kid= JweClient.keyId(key);
+	        System.out.println("[JWE] kid: "+kid);
 	        
 	        // Create the Claims, which will be the content of the JWT
 	        JwtClaims claims = new JwtClaims();
@@ -102,6 +102,7 @@ public class MessageEncode {
 	        
 	        jwe.setAlgorithmHeaderValue(KeyManagementAlgorithmIdentifiers.A128KW);
 	        jwe.setEncryptionMethodHeaderParameter(ContentEncryptionAlgorithmIdentifiers.AES_128_CBC_HMAC_SHA_256);
+	        jwe.setKeyIdHeaderValue(kid);
 	        jwe.setKey(key);
 	        jweData= jwe.getCompactSerialization();
 	        System.out.println("[JWE] jweData: " + jweData);
@@ -150,7 +151,7 @@ public class MessageEncode {
 		String a2aStatusCode= "999";
 		
         try {
-			for (int i=0; i<10; i++) {
+			for (int i=0; i<A2A_MAX_TRIES; i++) {
 				if (bpc) {
 	        		System.out.println("[PAM] Try A2A with bypassCache=true");
 					a2a.retrieveCredentials(alias, "true");
@@ -172,8 +173,11 @@ public class MessageEncode {
 					// Sometimes a2a.retrieveCredentials returns 401, even 
 					// when nothing is wrong. Wait a bit, then try again.
 					// Stop after X attepmts
-					System.out.println("[PAM] A2A got 401, wait and try again");
-					Thread.sleep(250);
+					if (i+1 < A2A_MAX_TRIES) {
+						long delay= backoff(i);
+						System.out.println("[PAM] A2A got 401, wait "+delay+" ms and try again");
+						Thread.sleep(delay);
+					}
 					continue;
 				}
 				break;	// neither 400 nor 401 returned, leave loop and handle error.
@@ -192,6 +196,14 @@ public class MessageEncode {
         return "*** Not available *** ("+rnd.nextInt(65536)+")";
     }
     
+	/*
+	 * Exponential backoff with jitter, between half and the full delay
+	 */
+	private static long backoff(int attempt) {
+		long delay= Math.min(A2A_RETRY_MAX_DELAY, A2A_RETRY_DELAY << attempt);
+		return delay/2 + rnd.nextInt((int)(delay - delay/2) + 1);
+	}
+
     //--------------------------------
     // HTTP stuff
     
@@ -0,0 +1,493 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.jose4j.jwe.ContentEncryptionAlgorithmIdentifiers;
+import org.jose4j.jwe.JsonWebEncryption;
+import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.NumericDate;
+import org.jose4j.keys.AesKey;
+import org.jose4j.lang.JoseException;
+
+import com.cloakware.cspm.client.CSPMClient;
+
+/**
+ * Client sending encrypted messages (JWE) to the echoApp, or to another 
+ * application decoding messages with Message in secureTomcat.
+ *
+ * The shared secret is fetched from PAM and the derived key is kept for
+ * the key ttl. After that the secret is fetched again in the background, 
+ * messages are encrypted with the current key meanwhile. If the server 
+ * answers that the message integrity is invalid, the secret was changed 
+ * in PAM. It is fetched with bypassCache=true and the message is sent 
+ * once more.
+ *
+ * All requests use one HttpClient, with HTTP/2 if the server supports it,
+ * otherwise HTTP/1.1 with keep-alive. The number of requests in flight is
+ * limited, a caller waits for a free slot up to the request timeout. The
+ * server certificate is verified with the truststore, or with the default
+ * truststore of Java.
+ *
+ * A JweClient is thread-safe, create one and share it.
+ *
+ * Properties
+ * - jwe.client.alias                 PAM alias of the shared secret, default "SecureTomcat-MessageEncode"
+ * - jwe.client.key.ttl               Time (in seconds) the key is used before it is fetched again, default 300
+ * - jwe.client.inflight              Max requests in flight, default 64
+ * - jwe.client.timeout               Request timeout (in ms), default 10000
+ * - jwe.client.connect.timeout       Connect timeout (in ms), default 5000
+ * - jwe.client.token.lifetime        Time (in seconds) a token is valid before and after it is sent, default 60
+ * - jwe.client.kid                   Send the key id in the 'kid' header, default true
+ * - jwe.client.truststore            Truststore file, optional
+ * - jwe.client.truststore.password   Truststore password, optional
+ */
+public class JweClient implements AutoCloseable {
+
+	public static final String PROPERTY_ALIAS= "jwe.client.alias";
+	public static final String PROPERTY_KEY_TTL= "jwe.client.key.ttl";
+	public static final String PROPERTY_INFLIGHT= "jwe.client.inflight";
+	public static final String PROPERTY_TIMEOUT= "jwe.client.timeout";
+	public static final String PROPERTY_CONNECT_TIMEOUT= "jwe.client.connect.timeout";
+	public static final String PROPERTY_TOKEN_LIFETIME= "jwe.client.token.lifetime";
+	public static final String PROPERTY_KID= "jwe.client.kid";
+	public static final String PROPERTY_TRUSTSTORE= "jwe.client.truststore";
+	public static final String PROPERTY_TRUSTSTORE_PASSWORD= "jwe.client.truststore.password";
+
+	private static final String DEFAULT_ALIAS= "SecureTomcat-MessageEncode";
+	private static final long DEFAULT_KEY_TTL= 300;
+	private static final long DEFAULT_INFLIGHT= 64;
+	private static final long DEFAULT_TIMEOUT= 10000;
+	private static final long DEFAULT_CONNECT_TIMEOUT= 5000;
+	private static final long DEFAULT_TOKEN_LIFETIME= 60;
+
+	private static final String MSG_ERR_INTEGRITY= "*** ERROR - Message integrity invalid ***";
+
+	private static final int A2A_MAX_TRIES= 10;
+	private static final long A2A_RETRY_DELAY= 50;		// First backoff (in ms) after 401
+	private static final long A2A_RETRY_MAX_DELAY= 500;	// Max backoff (in ms)
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat.client";
+	private final Logger LOGGER= Logger.getLogger(LOGGER_NAME);
+
+	/**
+	 * Source of the shared secret, A2A by default
+	 */
+	public interface SecretSource {
+		String getSecret(String alias, boolean bypassCache) throws Exception;
+	}
+
+	private final URI endpoint;
+	private final String alias;
+	private final long keyTtlMillis;
+	private final long timeoutMillis;
+	private final long tokenLifetime;
+	private final boolean withKid;
+	private final SecretSource secretSource;
+	private final Semaphore inFlight;
+	private final HttpClient http;
+	private final ExecutorService refresher;
+	private final AtomicReference<SharedKey> current= new AtomicReference<>();
+	private final AtomicReference<CompletableFuture<SharedKey>> firstFetch= new AtomicReference<>();
+	private final AtomicBoolean refreshing= new AtomicBoolean(false);
+
+	/*
+	 * Derived key and its key id
+	 */
+	private static final class SharedKey {
+		final Key key;
+		final String kid;
+		final long fetched;
+
+		SharedKey(Key key, String kid) {
+			this.key= key;
+			this.kid= kid;
+			this.fetched= System.currentTimeMillis();
+		}
+	}
+
+	/*
+	 * Client using A2A for the shared secret
+	 */
+	public JweClient(URI endpoint, Properties config) throws GeneralSecurityException, IOException {
+		this(endpoint, config, JweClient::getA2APassword);
+	}
+
+	public JweClient(URI endpoint, Properties config, SecretSource secretSource) throws GeneralSecurityException, IOException {
+		this.endpoint= endpoint;
+		this.secretSource= secretSource;
+		alias= config.getProperty(PROPERTY_ALIAS, DEFAULT_ALIAS);
+		keyTtlMillis= readProperty(config, PROPERTY_KEY_TTL, DEFAULT_KEY_TTL) * 1000;
+		timeoutMillis= readProperty(config, PROPERTY_TIMEOUT, DEFAULT_TIMEOUT);
+		tokenLifetime= readProperty(config, PROPERTY_TOKEN_LIFETIME, DEFAULT_TOKEN_LIFETIME);
+		withKid= Boolean.parseBoolean(config.getProperty(PROPERTY_KID, "true").trim());
+		inFlight= new Semaphore((int)readProperty(config, PROPERTY_INFLIGHT, DEFAULT_INFLIGHT));
+		LOGGER.fine("endpoint= "+endpoint+", alias= "+alias+", inflight= "+inFlight.availablePermits());
+
+		http= HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.connectTimeout(Duration.ofMillis(readProperty(config, PROPERTY_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT)))
+				.sslContext(sslContext(config))
+				.build();
+		refresher= Executors.newSingleThreadExecutor(r -> {
+			Thread t= new Thread(r, "jweclient-refresh");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/*
+	 * Send a message and wait for the response. The response is returned 
+	 * as is, including the "*** ERROR" responses of the server, except an
+	 * invalid message integrity after the key was fetched again.
+	 *
+	 * Throws IOException if the request failed or the status is not 200.
+	 */
+	public String send(String userData) throws IOException, InterruptedException {
+		try {
+			return sendAsync(userData).get();
+		}
+		catch (ExecutionException e) {
+			Throwable cause= e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	/*
+	 * Send a message without waiting for the response. The caller waits
+	 * for a free slot if the max number of requests are in flight. If no 
+	 * slot is free within the request timeout, the future fails with a
+	 * RejectedExecutionException.
+	 */
+	public CompletableFuture<String> sendAsync(String userData) {
+		try {
+			if (!inFlight.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				return CompletableFuture.failedFuture(new RejectedExecutionException("Too many requests in flight"));
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return CompletableFuture.failedFuture(e);
+		}
+		CompletableFuture<String> result;
+		try {
+			SharedKey key= currentKey();
+			result= post(key, userData).thenCompose(response -> {
+				if (!MSG_ERR_INTEGRITY.equals(response)) {
+					return CompletableFuture.completedFuture(response);
+				}
+				// the secret was changed in PAM, fetch it again and send once more
+				LOGGER.info("Message integrity invalid, fetch key with bypassCache=true");
+				return CompletableFuture.supplyAsync(() -> refetch(key), refresher).thenCompose(k -> post(k, userData));
+			});
+		}
+		catch (Exception e) {
+			result= CompletableFuture.failedFuture(e);
+		}
+		return result.whenComplete((r, t) -> inFlight.release());
+	}
+
+	/*
+	 * Encrypted token with the current key, as sent by send()
+	 */
+	public String encode(String userData) throws GeneralSecurityException, JoseException {
+		SharedKey key= currentKey();
+		long now= System.currentTimeMillis() / 1000;
+		return encode(key.key, key.kid, userData, now - tokenLifetime, now + tokenLifetime);
+	}
+
+	@Override
+	public void close() {
+		refresher.shutdownNow();
+		http.close();
+	}
+
+	private CompletableFuture<String> post(SharedKey key, String userData) {
+		String token;
+		try {
+			long now= System.currentTimeMillis() / 1000;
+			token= encode(key.key, key.kid, userData, now - tokenLifetime, now + tokenLifetime);
+		}
+		catch (JoseException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		HttpRequest request= HttpRequest.newBuilder(endpoint)
+				.timeout(Duration.ofMillis(timeoutMillis))
+				.header("Content-Type", "text/plain")
+				.POST(HttpRequest.BodyPublishers.ofString(token, StandardCharsets.US_ASCII))
+				.build();
+		return http.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8)).thenApply(response -> {
+			if (response.statusCode() != 200) {
+				throw new CompletionException(new IOException("HTTP status "+response.statusCode()+" from "+endpoint));
+			}
+			return response.body().trim();
+		});
+	}
+
+	/*
+	 * The current key. The first call fetches the secret, an expired key 
+	 * is refreshed in the background and used until the new key is there.
+	 * No lock is held while the secret is fetched, a new key is published
+	 * with a compare-and-set on the key it replaces.
+	 */
+	private SharedKey currentKey() throws GeneralSecurityException {
+		SharedKey key= current.get();
+		if (key == null) {
+			return firstKey();
+		}
+		if (System.currentTimeMillis() - key.fetched > keyTtlMillis && refreshing.compareAndSet(false, true)) {
+			try {
+				refresher.execute(() -> refresh(key));
+			}
+			catch (RejectedExecutionException e) {
+				refreshing.set(false);		// closed
+			}
+		}
+		return key;
+	}
+
+	/*
+	 * Fetch the first key. Concurrent callers wait for the same fetch, a
+	 * failed fetch is tried again by the next call.
+	 */
+	private SharedKey firstKey() throws GeneralSecurityException {
+		CompletableFuture<SharedKey> f= new CompletableFuture<>();
+		CompletableFuture<SharedKey> prev= firstFetch.compareAndExchange(null, f);
+		if (prev == null) {
+			try {
+				current.compareAndSet(null, fetch(false));
+				f.complete(current.get());
+			}
+			catch (GeneralSecurityException | RuntimeException e) {
+				f.completeExceptionally(e);
+				throw e;
+			}
+			finally {
+				firstFetch.compareAndSet(f, null);
+			}
+			return current.get();
+		}
+		try {
+			return prev.join();
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof GeneralSecurityException) {
+				throw (GeneralSecurityException)e.getCause();
+			}
+			throw new GeneralSecurityException("Shared secret not available, alias '"+alias+"'", e.getCause());
+		}
+	}
+
+	/*
+	 * Runs on the refresher. A key replaced meanwhile by refetch is kept.
+	 */
+	private void refresh(SharedKey expired) {
+		try {
+			current.compareAndSet(expired, fetch(false));
+		}
+		catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Key refresh failed, keep current key", e);
+		}
+		finally {
+			refreshing.set(false);
+		}
+	}
+
+	/*
+	 * Fetch with bypassCache=true, unless another request replaced the 
+	 * rejected key already. Runs on the refresher, one fetch at a time.
+	 */
+	private SharedKey refetch(SharedKey rejected) {
+		SharedKey key= current.get();
+		if (key != rejected) {
+			return key;
+		}
+		try {
+			SharedKey fresh= fetch(true);
+			return current.compareAndSet(rejected, fresh) ? fresh : current.get();
+		}
+		catch (GeneralSecurityException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	private SharedKey fetch(boolean bypassCache) throws GeneralSecurityException {
+		String secret;
+		try {
+			secret= secretSource.getSecret(alias, bypassCache);
+		}
+		catch (Exception e) {
+			throw new GeneralSecurityException("Shared secret not available, alias '"+alias+"'", e);
+		}
+		if (secret == null || secret.startsWith("***")) {
+			throw new GeneralSecurityException("Shared secret not available, alias '"+alias+"': "+secret);
+		}
+		Key key= deriveKey(secret);
+		return new SharedKey(key, withKid ? keyId(key) : null);
+	}
+
+	/*
+	 * Generate symmetric 256 bit key using SHA256.
+	 * Use first 128 bits as AES key
+	 */
+	public static Key deriveKey(String sharedSecret) throws GeneralSecurityException {
+		MessageDigest sha= MessageDigest.getInstance("SHA-256");
+		byte[] sharedKey= sha.digest(sharedSecret.getBytes(StandardCharsets.UTF_8));
+		try {
+			return new AesKey(Arrays.copyOfRange(sharedKey, 0, 16));
+		}
+		finally {
+			Arrays.fill(sharedKey, (byte)0);
+		}
+	}
+
+	/*
+	 * Key id sent in the 'kid' header, the first 64 bits of the SHA-256 
+	 * hash of the AES key (base64url). Same as JweDecryptor in secureTomcat.
+	 */
+	public static String keyId(Key key) throws GeneralSecurityException {
+		byte[] hash= MessageDigest.getInstance("SHA-256").digest(key.getEncoded());
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, 8));
+	}
+
+	/*
+	 * Encrypted JWT with the userData claim. The token is valid from nbf 
+	 * until exp (epoch seconds), the kid header is omitted if kid is null.
+	 */
+	public static String encode(Key key, String kid, String userData, long nbf, long exp) throws JoseException {
+		JwtClaims claims= new JwtClaims();
+		claims.setIssuer("PAM");
+		claims.setIssuedAtToNow();
+		claims.setNotBefore(NumericDate.fromSeconds(nbf));
+		claims.setExpirationTime(NumericDate.fromSeconds(exp));
+		claims.setStringClaim("userData", userData);
+		claims.setGeneratedJwtId();
+
+		JsonWebEncryption jwe= new JsonWebEncryption();
+		jwe.setPayload(claims.toJson());
+		jwe.setAlgorithmHeaderValue(KeyManagementAlgorithmIdentifiers.A128KW);
+		jwe.setEncryptionMethodHeaderParameter(ContentEncryptionAlgorithmIdentifiers.AES_128_CBC_HMAC_SHA_256);
+		if (kid != null) {
+			jwe.setKeyIdHeaderValue(kid);
+		}
+		jwe.setKey(key);
+		return jwe.getCompactSerialization();
+	}
+
+	/*
+	 * Use A2A Client to fetch the password for an alias. A 401 is retried 
+	 * with backoff, as it is sometimes returned when nothing is wrong.
+	 */
+	public static String getA2APassword(String alias, boolean bypassCache) throws InterruptedException {
+		CSPMClient a2a= new CSPMClient();
+		String a2aStatusCode= "999";
+		for (int i= 0; i < A2A_MAX_TRIES; i++) {
+			a2a.retrieveCredentials(alias, Boolean.toString(bypassCache));
+			a2aStatusCode= a2a.getStatusCode();
+			if ("400".equals(a2aStatusCode)) {
+				return a2a.getPassword();
+			}
+			if (!"401".equals(a2aStatusCode)) {
+				break;	// neither 400 nor 401 returned
+			}
+			if (i + 1 < A2A_MAX_TRIES) {
+				long delay= Math.min(A2A_RETRY_MAX_DELAY, A2A_RETRY_DELAY << i);
+				Thread.sleep(delay/2 + ThreadLocalRandom.current().nextLong(delay - delay/2 + 1));
+			}
+		}
+		return "*** not available - rc="+a2aStatusCode+" - "+a2a.getMessage()+" ***";
+	}
+
+	/*
+	 * SSL context verifying the server with the truststore, if configured.
+	 * The type of the truststore (PKCS12, JKS) is detected from the file.
+	 */
+	private static SSLContext sslContext(Properties config) throws GeneralSecurityException, IOException {
+		String truststore= config.getProperty(PROPERTY_TRUSTSTORE);
+		if (truststore == null || truststore.isBlank()) {
+			return SSLContext.getDefault();
+		}
+		String password= config.getProperty(PROPERTY_TRUSTSTORE_PASSWORD);
+		KeyStore ks= KeyStore.getInstance(Path.of(truststore.trim()).toFile(), (password == null) ? null : password.toCharArray());
+		TrustManagerFactory tmf= TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(ks);
+		SSLContext ctx= SSLContext.getInstance("TLS");
+		ctx.init(null, tmf.getTrustManagers(), null);
+		return ctx;
+	}
+
+	private long readProperty(Properties config, String name, long defaultValue) {
+		String value= config.getProperty(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			long v= Long.parseLong(value.trim());
+			if (v > 0) {
+				return v;
+			}
+		}
+		catch (Exception e) {
+			// fall through
+		}
+		LOGGER.info("Value of property '"+name+"' invalid, using default "+defaultValue);
+		return defaultValue;
+	}
+}
@@ -0,0 +1,192 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.pam_exchange.securetomcat.PAM;
+
+/**
+ * PAM.checkCallstack with a matching hash.
+ *
+ * The callstack includes the frames of JMH, so the expected hash is not 
+ * known before the benchmark runs. The first call checks non-strict and 
+ * takes the actual hash from the log, every later call from the same 
+ * place must match it.
+ *
+ * checkCallstackOld is the check as it was before CallstackFingerprint:
+ * getStackTrace(), the callstack string built with += and hashed with
+ * PAM.sha256String. It runs at the same stack depth, for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations= 3, time= 1)
+@Measurement(iterations= 5, time= 1)
+@Fork(1)
+public class CallstackBenchmark {
+
+	private static final MethodHandle CHECK_CALLSTACK= Fixtures.pamMethod("checkCallstack", Boolean.class, CompletableFuture.class, Boolean.class);
+	private static final MethodHandle SHA256_STRING= Fixtures.pamMethod("sha256String", String.class, String.class);
+	private static final String IGNORED_CLASS= "org.apache.catalina.startup.Bootstrap";
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat";
+	private static final String ACTUAL= "actual: ";
+
+	private PAM pam;
+	private CompletableFuture<String> expected;
+	private String expectedOld;
+
+	@Setup
+	public void setup() throws Exception {
+		pam= Fixtures.newPam();
+	}
+
+	@Benchmark
+	public Boolean checkCallstack() throws Throwable {
+		return verify();
+	}
+
+	@Benchmark
+	public Boolean checkCallstackOld() throws Throwable {
+		return verifyOld();
+	}
+
+	/*
+	 * Both the first and the later calls are made from here, the callstack 
+	 * is the same.
+	 */
+	private Boolean verify() throws Throwable {
+		boolean learn= (expected == null);
+		Capture capture= learn ? new Capture() : null;
+		CompletableFuture<String> hash= learn ? CompletableFuture.completedFuture("") : expected;
+		Boolean ok;
+		try {
+			ok= (Boolean)CHECK_CALLSTACK.invokeExact(pam, hash, Boolean.valueOf(!learn));
+		}
+		finally {
+			if (capture != null) {
+				capture.close();
+			}
+		}
+		if (learn) {
+			if (capture.actual == null) {
+				throw new IllegalStateException("Callstack hash not logged");
+			}
+			expected= CompletableFuture.completedFuture(capture.actual);
+		}
+		else if (!ok) {
+			throw new IllegalStateException("Callstack changed");
+		}
+		return ok;
+	}
+
+	/*
+	 * The callstack check before CallstackFingerprint, including the log
+	 * messages built for each frame. The first call takes the hash.
+	 */
+	private Boolean verifyOld() throws Throwable {
+		Logger logger= Logger.getLogger(LOGGER_NAME);
+		String callstack = "";
+		StackTraceElement[] stackTraceElements = Thread.currentThread().getStackTrace();
+		logger.fine("stackTraceElements.length= " + stackTraceElements.length);
+		for (int i = 1; i < stackTraceElements.length; i++) {
+			StackTraceElement ste = stackTraceElements[i];
+			String classname = ste.getClassName();
+			String methodName = ste.getMethodName();
+			int lineNumber = ste.getLineNumber();
+
+			if (IGNORED_CLASS.equals(classname)) {
+				logger.fine("callstack: " + classname + "." + methodName + ":" + lineNumber+" - (ignore)");
+			}
+			else {
+				logger.fine("callstack: " + classname + "." + methodName + ":" + lineNumber);
+				if (callstack.length() != 0) {
+					callstack += ", ";
+				}
+				callstack += classname + "." + methodName + ":" + lineNumber;
+			}
+		}
+		String actualHash= (String)SHA256_STRING.invokeExact(pam, callstack);
+		if (expectedOld == null) {
+			expectedOld= actualHash;
+		}
+		else if (!actualHash.equals(expectedOld)) {
+			throw new IllegalStateException("Callstack changed");
+		}
+		return Boolean.TRUE;
+	}
+
+	/*
+	 * Takes the actual hash from the log of a failed verification
+	 */
+	private static final class Capture extends Handler {
+		private final Logger logger= Logger.getLogger(LOGGER_NAME);
+		private final Level level= logger.getLevel();
+		private final boolean useParentHandlers= logger.getUseParentHandlers();
+		private String actual;
+
+		Capture() {
+			logger.setLevel(Level.SEVERE);
+			logger.setUseParentHandlers(false);
+			logger.addHandler(this);
+		}
+
+		@Override
+		public void publish(LogRecord record) {
+			String msg= record.getMessage();
+			if (msg != null && msg.startsWith(ACTUAL)) {
+				actual= msg.substring(ACTUAL.length());
+			}
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+			logger.removeHandler(this);
+			logger.setUseParentHandlers(useParentHandlers);
+			logger.setLevel(level);
+		}
+	}
+}
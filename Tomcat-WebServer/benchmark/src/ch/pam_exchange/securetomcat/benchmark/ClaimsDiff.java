@@ -0,0 +1,652 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Differential check of the ClaimsReader in Message against json-simple,
+ * which Message used before.
+ *
+ * Random claims and mutations of them are read by both parsers, followed 
+ * by the checks of Message.jwtDecode (time window, expiry, missing claims).
+ * Both must give the same outcome, the same MSG_ERR_* or the same userData.
+ *
+ * ClaimsReader is stricter than json-simple. A difference is accepted if 
+ * it has one of these reasons, otherwise the check fails:
+ * - invalid JSON     ClaimsReader rejects input which is not valid JSON 
+ *                    (RFC 8259), but which json-simple accepts, e.g. a 
+ *                    trailing comma, a missing colon, a leading zero, a 
+ *                    control character or an invalid escape in a string.
+ *                    Checked with a separate strict validator.
+ * - duplicate claim  A claim used twice, json-simple takes the last value
+ * - claim type       A claim of the wrong type is rejected when reading, 
+ *                    json-simple failed later, possibly with another error
+ * - number range     An integer out of the long range in another member,
+ *                    which json-simple cannot parse
+ * - nesting          Nesting deeper than ClaimsReader allows
+ *
+ * Usage: ClaimsDiff [iterations [seed]]
+ *
+ * Exit code 1 if there is a difference without one of these reasons.
+ */
+public final class ClaimsDiff {
+
+	// Outcomes, as returned by Message.jwtDecode
+	private static final String MSG_ERR_TOKEN_EXPIRED= "*** ERROR - Token has expired ***";
+	private static final String MSG_ERR_TIME_WINDOW= "*** ERROR - Invalid time window ***";
+	private static final String MSG_ERR_INVALID_DATA= "*** ERROR - Invalid data ***";
+	private static final String MSG_ERR_MISSING_CLAIM= "*** ERROR - Missing claim ***";
+	private static final String MSG_ERR_EXCEPTION= "*** ERROR - Exception ***";
+
+	private static final long TIME_WINDOW= 300;
+	private static final int MAX_DEPTH= 32;		// of ClaimsReader
+	private static final int MAX_EXAMPLES= 5;
+	private static final String[] CLAIMS= {"nbf", "exp", "iat", "jti", "userData"};
+	private static final String MUTATION_BYTES= "{}[]:,\"\\0123456789-+.eEtrufalsn \t\n\r\f\u0001/u";
+
+	private static final MethodHandle READ;
+	private static final MethodHandle[] GET= new MethodHandle[CLAIMS.length];
+
+	static {
+		try {
+			Class<?> reader= Class.forName("ch.pam_exchange.securetomcat.ClaimsReader");
+			MethodHandles.Lookup lookup= MethodHandles.privateLookupIn(reader, MethodHandles.lookup());
+			READ= lookup.findStatic(reader, "read", MethodType.methodType(reader, byte[].class));
+			String[] getters= {"getNbf", "getExp", "getIat", "getJti", "getUserData"};
+			for (int i= 0; i < getters.length; i++) {
+				GET[i]= lookup.findVirtual(reader, getters[i], MethodType.methodType(i < 3 ? Long.class : String.class));
+			}
+		}
+		catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final Random rnd;
+	private final long now= System.currentTimeMillis() / 1000;
+	private final Map<String,Integer> outcomes= new TreeMap<>();
+	private final Map<String,Integer> accepted= new TreeMap<>();
+	private final List<String> failures= new ArrayList<>();
+	private int same;
+	private int different;
+
+	private ClaimsDiff(long seed) {
+		this.rnd= new Random(seed);
+	}
+
+	public static void main(String[] args) throws Throwable {
+		int iterations= (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		long seed= (args.length > 1) ? Long.parseLong(args[1]) : System.nanoTime();
+		System.out.println("[DIFF] iterations= "+iterations+", seed= "+seed);
+
+		ClaimsDiff diff= new ClaimsDiff(seed);
+		for (int i= 0; i < iterations; i++) {
+			byte[] valid= diff.payload();
+			diff.compare(valid);
+			diff.compare(diff.mutate(valid));
+		}
+		diff.report();
+		System.exit(diff.failures.isEmpty() ? 0 : 1);
+	}
+
+	private void compare(byte[] payload) throws Throwable {
+		String expected= jsonSimple(payload);
+		Throwable[] error= new Throwable[1];
+		String actual= claimsReader(payload, error);
+		outcomes.merge(outcome(actual), 1, Integer::sum);
+		if (expected.equals(actual)) {
+			same++;
+			return;
+		}
+		different++;
+		String reason= reason(payload, expected, actual, error[0]);
+		if (reason != null) {
+			accepted.merge(reason, 1, Integer::sum);
+			return;
+		}
+		if (failures.size() < MAX_EXAMPLES) {
+			failures.add("payload= "+printable(new String(payload, StandardCharsets.UTF_8))+"\n         json-simple= "+printable(expected)
+					+"\n         ClaimsReader= "+printable(actual)+((error[0] != null) ? " ("+error[0].getMessage()+")" : ""));
+		} else {
+			failures.add(null);
+		}
+	}
+
+	/*
+	 * Reason of an accepted difference, null if not accepted
+	 */
+	private String reason(byte[] payload, String expected, String actual, Throwable error) {
+		String type= (error != null) ? error.getClass().getSimpleName() : "";
+		if (type.equals("InvalidClaimsException")) {
+			if (error.getMessage().startsWith("Duplicate claim")) {
+				return "duplicate claim";
+			}
+			if (error.getMessage().startsWith("Nesting too deep") && depth(payload) > MAX_DEPTH) {
+				return "nesting";
+			}
+			if (!StrictJson.isValid(payload)) {
+				return "invalid JSON";
+			}
+			return null;
+		}
+		if (type.equals("ClaimTypeException") && expected.startsWith("***")) {
+			return "claim type";
+		}
+		if (expected.equals(MSG_ERR_EXCEPTION + " NumberFormatException") && StrictJson.isValid(payload)) {
+			return "number range";
+		}
+		return null;
+	}
+
+	/*
+	 * Outcome with json-simple, as Message did before
+	 */
+	private String jsonSimple(byte[] payload) {
+		Object json;
+		try {
+			json= new JSONParser().parse(new String(payload, StandardCharsets.UTF_8));
+		}
+		catch (ParseException e) {
+			return MSG_ERR_INVALID_DATA;
+		}
+		catch (NumberFormatException e) {
+			return MSG_ERR_EXCEPTION + " NumberFormatException";
+		}
+		catch (RuntimeException | Error e) {
+			return MSG_ERR_EXCEPTION;
+		}
+		try {
+			JSONObject claims= (JSONObject)json;
+			return check((Long)claims.get("nbf"), (Long)claims.get("exp"), (Long)claims.get("iat"), 
+					(String)claims.get("jti"), () -> (String)claims.get("userData"));
+		}
+		catch (RuntimeException e) {
+			return MSG_ERR_EXCEPTION;
+		}
+	}
+
+	/*
+	 * Outcome with ClaimsReader, as Message does now
+	 */
+	private String claimsReader(byte[] payload, Throwable[] error) throws Throwable {
+		Object claims;
+		try {
+			claims= READ.invoke(payload);
+		}
+		catch (Exception e) {
+			error[0]= e;
+			return e.getClass().getSimpleName().equals("InvalidClaimsException") ? MSG_ERR_INVALID_DATA : MSG_ERR_EXCEPTION;
+		}
+		Object[] v= new Object[CLAIMS.length];
+		for (int i= 0; i < CLAIMS.length; i++) {
+			v[i]= GET[i].invoke(claims);
+		}
+		return check((Long)v[0], (Long)v[1], (Long)v[2], (String)v[3], () -> (String)v[4]);
+	}
+
+	private interface UserData {
+		String get();
+	}
+
+	/*
+	 * The checks of Message.jwtDecode after parsing, in the same order. 
+	 * userData is read last, json-simple casts it only then.
+	 */
+	private String check(Long nbf, Long exp, Long iat, String jti, UserData userData) {
+		if (nbf == null || exp == null) {
+			return MSG_ERR_EXCEPTION;		// unboxing in Message
+		}
+		if (exp - nbf > TIME_WINDOW) {
+			return MSG_ERR_TIME_WINDOW;
+		}
+		if (exp < now) {
+			return MSG_ERR_TOKEN_EXPIRED;
+		}
+		if (jti == null || iat == null) {
+			return MSG_ERR_MISSING_CLAIM;
+		}
+		return "userData= "+userData.get();
+	}
+
+	/*
+	 * Control characters escaped, one line per payload
+	 */
+	private static String printable(String s) {
+		StringBuilder sb= new StringBuilder(s.length());
+		for (int i= 0; i < s.length(); i++) {
+			char c= s.charAt(i);
+			if (c < 0x20) {
+				sb.append(String.format("<%02x>", (int)c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String outcome(String result) {
+		return result.startsWith("***") ? result : "accepted";
+	}
+
+	// ---- payloads ----
+
+	/*
+	 * Claims as sent by a client, with variations: other members, order,
+	 * whitespace, escapes, missing or null claims and claims of the wrong 
+	 * type. Valid JSON, unless a claim is duplicated.
+	 */
+	private byte[] payload() {
+		long nbf= now - rnd.nextInt(120);
+		long exp= nbf + ((rnd.nextInt(10) == 0) ? TIME_WINDOW + 1 + rnd.nextInt(100) : rnd.nextInt((int)TIME_WINDOW + 1));
+		if (rnd.nextInt(10) == 0) {
+			exp= now - 1 - rnd.nextInt(60);
+			nbf= exp - rnd.nextInt(60);
+		}
+		List<String> members= new ArrayList<>();
+		members.add(member("nbf", number(nbf)));
+		members.add(member("exp", number(exp)));
+		members.add(member("iat", number(now - rnd.nextInt(60))));
+		members.add(member("jti", string(jti())));
+		members.add(member("userData", string(text())));
+		for (int i= 0; i < CLAIMS.length; i++) {
+			int r= rnd.nextInt(40);
+			if (r == 0) {
+				members.set(i, null);
+			} else if (r == 1) {
+				members.set(i, member(CLAIMS[i], "null"));
+			} else if (r == 2) {
+				members.set(i, member(CLAIMS[i], wrongType(i)));
+			} else if (r == 3) {
+				members.add(member(CLAIMS[i], (i < 3) ? number(now) : string(text())));		// duplicate
+			}
+		}
+		members.removeIf(m -> m == null);
+		int extra= rnd.nextInt(4);
+		for (int i= 0; i < extra; i++) {
+			members.add(member(rnd.nextBoolean() ? "iss" : text(), value(0)));
+		}
+		Collections.shuffle(members, rnd);
+		StringBuilder sb= new StringBuilder();
+		sb.append(ws()).append('{');
+		for (int i= 0; i < members.size(); i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(ws()).append(members.get(i)).append(ws());
+		}
+		sb.append('}').append(ws());
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private String member(String name, String value) {
+		return string(name) + ws() + ':' + ws() + value;
+	}
+
+	private String wrongType(int claim) {
+		switch (rnd.nextInt(6)) {
+			case 0: return (claim < 3) ? string(Long.toString(now)) : number(now);
+			case 1: return now + ".0";
+			case 2: return rnd.nextBoolean() ? "true" : "false";
+			case 3: return "[" + number(now) + "]";
+			case 4: return "{}";
+			default: return "9223372036854775808";
+		}
+	}
+
+	/*
+	 * A random JSON value for other members
+	 */
+	private String value(int depth) {
+		int r= rnd.nextInt(depth < 3 ? 9 : 6);
+		switch (r) {
+			case 0: return string(text());
+			case 1: return number(rnd.nextLong() >> rnd.nextInt(64));
+			case 2: return (rnd.nextBoolean() ? "-" : "") + rnd.nextInt(1000) + "." + rnd.nextInt(1000) + (rnd.nextBoolean() ? "e" + (rnd.nextBoolean() ? "+" : "-") + rnd.nextInt(20) : "");
+			case 3: return rnd.nextBoolean() ? "true" : "false";
+			case 4: return "null";
+			case 5: return (rnd.nextInt(20) == 0) ? "12345678901234567890" : "-0";
+			case 6: {
+				StringBuilder sb= new StringBuilder("[");
+				int n= rnd.nextInt(4);
+				for (int i= 0; i < n; i++) {
+					sb.append(i > 0 ? "," : "").append(ws()).append(value(depth + 1));
+				}
+				return sb.append(ws()).append(']').toString();
+			}
+			case 7: {
+				StringBuilder sb= new StringBuilder("{");
+				int n= rnd.nextInt(4);
+				for (int i= 0; i < n; i++) {
+					sb.append(i > 0 ? "," : "").append(member(text(), value(depth + 1)));
+				}
+				return sb.append('}').toString();
+			}
+			default: {
+				int n= (rnd.nextInt(50) == 0) ? MAX_DEPTH + 1 : rnd.nextInt(5);
+				return "[".repeat(n) + "1" + "]".repeat(n);
+			}
+		}
+	}
+
+	private String number(long v) {
+		return Long.toString(v);
+	}
+
+	private String jti() {
+		byte[] b= new byte[16];
+		rnd.nextBytes(b);
+		return java.util.Base64.getUrlEncoder().withoutPadding().encodeToString(b);
+	}
+
+	private String text() {
+		String alphabet= "abcXYZ019 {}[]:,\"\\/éü€😀\t\n";
+		int n= rnd.nextInt(12);
+		StringBuilder sb= new StringBuilder();
+		for (int i= 0; i < n; i++) {
+			int c= rnd.nextInt(alphabet.length());
+			if (Character.isHighSurrogate(alphabet.charAt(c))) {
+				sb.append(alphabet, c, c + 2);
+			} else if (!Character.isLowSurrogate(alphabet.charAt(c))) {
+				sb.append(alphabet.charAt(c));
+			}
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * JSON string, characters escaped at random where allowed
+	 */
+	private String string(String s) {
+		StringBuilder sb= new StringBuilder("\"");
+		for (int i= 0; i < s.length(); i++) {
+			char c= s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c == '\n') {
+				sb.append(rnd.nextBoolean() ? "\\n" : "\\u000a");
+			} else if (c == '\t') {
+				sb.append(rnd.nextBoolean() ? "\\t" : "\\u0009");
+			} else if (c == '/' && rnd.nextBoolean()) {
+				sb.append("\\/");
+			} else if ((c > 0x7e || rnd.nextInt(20) == 0) && rnd.nextBoolean()) {
+				sb.append(String.format(rnd.nextBoolean() ? "\\u%04x" : "\\u%04X", (int)c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private String ws() {
+		switch (rnd.nextInt(8)) {
+			case 0: return " ";
+			case 1: return "\n\t";
+			case 2: return "\r\n ";
+			default: return "";
+		}
+	}
+
+	/*
+	 * One or a few random changes: replace, insert or delete a byte, or 
+	 * cut the payload
+	 */
+	private byte[] mutate(byte[] payload) {
+		StringBuilder sb= new StringBuilder(new String(payload, StandardCharsets.ISO_8859_1));
+		int n= 1 + rnd.nextInt(3);
+		for (int i= 0; i < n && sb.length() > 0; i++) {
+			int pos= rnd.nextInt(sb.length());
+			char c= MUTATION_BYTES.charAt(rnd.nextInt(MUTATION_BYTES.length()));
+			switch (rnd.nextInt(4)) {
+				case 0: sb.setCharAt(pos, c); break;
+				case 1: sb.insert(pos, c); break;
+				case 2: sb.deleteCharAt(pos); break;
+				default: sb.setLength(pos); break;
+			}
+		}
+		return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static int depth(byte[] payload) {
+		int depth= 0;
+		int max= 0;
+		boolean inString= false;
+		for (int i= 0; i < payload.length; i++) {
+			byte c= payload[i];
+			if (inString) {
+				if (c == '\\') {
+					i++;
+				} else if (c == '"') {
+					inString= false;
+				}
+			} else if (c == '"') {
+				inString= true;
+			} else if (c == '{' || c == '[') {
+				max= Math.max(max, ++depth);
+			} else if (c == '}' || c == ']') {
+				depth--;
+			}
+		}
+		return max;
+	}
+
+	private void report() {
+		System.out.println("[DIFF] outcomes of ClaimsReader "+outcomes);
+		System.out.println("[DIFF] same outcome= "+same+", different= "+different+", accepted differences "+accepted);
+		int shown= 0;
+		for (String f : failures) {
+			if (f != null) {
+				System.out.println("[DIFF] FAILED "+f);
+				shown++;
+			}
+		}
+		if (failures.size() > shown) {
+			System.out.println("[DIFF] ... "+(failures.size() - shown)+" more");
+		}
+		System.out.println("[DIFF] "+(failures.isEmpty() ? "OK" : "FAILED - "+failures.size()+" differences without a reason"));
+	}
+
+	/**
+	 * Validator of JSON text (RFC 8259), independent of ClaimsReader. 
+	 * Only says if the input is valid, no limit on the nesting.
+	 */
+	static final class StrictJson {
+		private final byte[] b;
+		private int pos;
+
+		private StrictJson(byte[] b) {
+			this.b= b;
+		}
+
+		static boolean isValid(byte[] json) {
+			StrictJson p= new StrictJson(json);
+			try {
+				p.ws();
+				p.value();
+				p.ws();
+				return p.pos == json.length;
+			}
+			catch (IllegalArgumentException e) {
+				return false;
+			}
+		}
+
+		private void value() {
+			byte c= peek();
+			if (c == '{') {
+				pos++;
+				ws();
+				if (peek() == '}') {
+					pos++;
+					return;
+				}
+				for (;;) {
+					ws();
+					string();
+					ws();
+					expect(':');
+					ws();
+					value();
+					ws();
+					if (peek() == '}') {
+						pos++;
+						return;
+					}
+					expect(',');
+				}
+			}
+			if (c == '[') {
+				pos++;
+				ws();
+				if (peek() == ']') {
+					pos++;
+					return;
+				}
+				for (;;) {
+					ws();
+					value();
+					ws();
+					if (peek() == ']') {
+						pos++;
+						return;
+					}
+					expect(',');
+				}
+			}
+			if (c == '"') {
+				string();
+			} else if (c == 't') {
+				literal("true");
+			} else if (c == 'f') {
+				literal("false");
+			} else if (c == 'n') {
+				literal("null");
+			} else {
+				number();
+			}
+		}
+
+		private void string() {
+			expect('"');
+			for (;;) {
+				byte c= next();
+				if (c == '"') {
+					return;
+				}
+				if ((c & 0xff) < 0x20) {
+					throw new IllegalArgumentException();
+				}
+				if (c == '\\') {
+					byte e= next();
+					if (e == 'u') {
+						for (int i= 0; i < 4; i++) {
+							if (Character.digit(next(), 16) < 0) {
+								throw new IllegalArgumentException();
+							}
+						}
+					} else if ("\"\\/bfnrt".indexOf(e) < 0) {
+						throw new IllegalArgumentException();
+					}
+				}
+			}
+		}
+
+		// -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?
+		private void number() {
+			if (peek() == '-') {
+				pos++;
+			}
+			if (peek() == '0') {
+				pos++;
+			} else {
+				digits();
+			}
+			if (pos < b.length && b[pos] == '.') {
+				pos++;
+				digits();
+			}
+			if (pos < b.length && (b[pos] == 'e' || b[pos] == 'E')) {
+				pos++;
+				if (peek() == '+' || peek() == '-') {
+					pos++;
+				}
+				digits();
+			}
+		}
+
+		private void digits() {
+			if (peek() < '0' || peek() > '9') {
+				throw new IllegalArgumentException();
+			}
+			while (pos < b.length && b[pos] >= '0' && b[pos] <= '9') {
+				pos++;
+			}
+		}
+
+		private void literal(String s) {
+			for (int i= 0; i < s.length(); i++) {
+				expect(s.charAt(i));
+			}
+		}
+
+		private void ws() {
+			while (pos < b.length && (b[pos] == ' ' || b[pos] == '\t' || b[pos] == '\n' || b[pos] == '\r')) {
+				pos++;
+			}
+		}
+
+		private void expect(char c) {
+			if (next() != c) {
+				throw new IllegalArgumentException();
+			}
+		}
+
+		private byte peek() {
+			if (pos >= b.length) {
+				throw new IllegalArgumentException();
+			}
+			return b[pos];
+		}
+
+		private byte next() {
+			byte c= peek();
+			pos++;
+			return c;
+		}
+	}
+}
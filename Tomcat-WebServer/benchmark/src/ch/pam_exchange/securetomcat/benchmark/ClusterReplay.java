@@ -0,0 +1,193 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+
+package ch.pam_exchange.securetomcat.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+
+import ch.pam_exchange.securetomcat.client.JweClient;
+
+/**
+ * Check of the cluster replay store with two echoApp nodes.
+ *
+ * A token is accepted by node A, then sent again to node B, which must
+ * reject it as a replay once the batch with its id has arrived. Every 
+ * second token goes from B to A. The nodes are EchoServer processes with
+ * the cluster replay store, see the target clusterreplay.
+ *
+ * The store of a node is created with the first request, the first tokens
+ * wait until both nodes are connected.
+ *
+ * Usage: ClusterReplay urlA urlB [tokens [wait]]
+ *   tokens  Number of tokens replayed, default 100
+ *   wait    Time (ms) between the two requests of a token, default 500.
+ *           Must be longer than the flush interval of the nodes.
+ *
+ * Exit code 1 if a replay was accepted or a token was rejected by the 
+ * first node.
+ */
+public final class ClusterReplay {
+
+	private static final String MSG_ERR_TOKEN_REPLAY= "*** ERROR - Token replay ***";
+	private static final String ALIAS= "benchmark-jwt";
+	private static final long TOKEN_LIFETIME= 60;		// seconds
+	private static final long CONNECT_TIMEOUT= 30000;	// Max time (in ms) until the nodes are connected
+	private static final int TIMEOUT= 10000;			// Connect and read timeout (ms)
+
+	private final URL[] urls;
+	private final Key key;
+	private final String kid;
+	private int n;
+
+	private ClusterReplay(URL a, URL b) throws Exception {
+		this.urls= new URL[] {a, b};
+		String sharedSecret= JweClient.getA2APassword(ALIAS, false);
+		if (sharedSecret.startsWith("***")) {
+			throw new IllegalStateException("Shared secret not available: '"+sharedSecret+"'");
+		}
+		this.key= JweClient.deriveKey(sharedSecret);
+		this.kid= JweClient.keyId(key);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: ClusterReplay urlA urlB [tokens [wait]]");
+			System.exit(2);
+		}
+		URL a= new URI(args[0]).toURL();
+		URL b= new URI(args[1]).toURL();
+		int tokens= (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+		long wait= (args.length > 3) ? Long.parseLong(args[3]) : 500;
+		System.out.println("[CLUSTER] A= "+a+", B= "+b+", tokens= "+tokens+", wait= "+wait+" ms");
+
+		ClusterReplay check= new ClusterReplay(a, b);
+		if (!check.connect(wait)) {
+			System.out.println("[CLUSTER] FAILED - nodes not connected after "+CONNECT_TIMEOUT+" ms");
+			System.exit(1);
+		}
+
+		int rejected= 0, accepted= 0, errors= 0;
+		for (int i= 0; i < tokens; i++) {
+			int first= i % 2;
+			String token= check.token();
+			String r1= check.post(first, token);
+			if (!check.isAccepted(r1)) {
+				System.out.println("[CLUSTER] token "+i+" not accepted by node "+name(first)+": "+r1);
+				errors++;
+				continue;
+			}
+			Thread.sleep(wait);
+			String r2= check.post(1 - first, token);
+			if (MSG_ERR_TOKEN_REPLAY.equals(r2)) {
+				rejected++;
+			} else if (check.isAccepted(r2)) {
+				System.out.println("[CLUSTER] token "+i+" accepted by node "+name(first)+" and replayed on node "+name(1 - first));
+				accepted++;
+			} else {
+				System.out.println("[CLUSTER] token "+i+", node "+name(1 - first)+": "+r2);
+				errors++;
+			}
+		}
+		System.out.println("[CLUSTER] replays rejected= "+rejected+", replays accepted= "+accepted+", errors= "+errors);
+		boolean ok= accepted == 0 && errors == 0;
+		System.out.println("[CLUSTER] "+(ok ? "OK" : "FAILED"));
+		System.exit(ok ? 0 : 1);
+	}
+
+	/*
+	 * Start the replay store of both nodes, and wait until a token 
+	 * accepted by A is rejected by B
+	 */
+	private boolean connect(long wait) throws Exception {
+		post(1, token());
+		long end= System.currentTimeMillis() + CONNECT_TIMEOUT;
+		while (System.currentTimeMillis() < end) {
+			String token= token();
+			if (isAccepted(post(0, token))) {
+				Thread.sleep(wait);
+				if (MSG_ERR_TOKEN_REPLAY.equals(post(1, token))) {
+					System.out.println("[CLUSTER] nodes connected");
+					return true;
+				}
+			}
+			Thread.sleep(500);
+		}
+		return false;
+	}
+
+	private String token() throws Exception {
+		long now= System.currentTimeMillis() / 1000;
+		return JweClient.encode(key, kid, "cluster-"+(n++), now, now + TOKEN_LIFETIME);
+	}
+
+	private boolean isAccepted(String response) {
+		return response != null && !response.startsWith("***");
+	}
+
+	private static String name(int node) {
+		return (node == 0) ? "A" : "B";
+	}
+
+	/*
+	 * POST the token to a node. Returns the response, or null if the 
+	 * request failed.
+	 */
+	private String post(int node, String token) {
+		try {
+			HttpURLConnection con= (HttpURLConnection)urls[node].openConnection();
+			con.setConnectTimeout(TIMEOUT);
+			con.setReadTimeout(TIMEOUT);
+			con.setRequestMethod("POST");
+			con.setDoOutput(true);
+			byte[] body= token.getBytes(StandardCharsets.US_ASCII);
+			con.setFixedLengthStreamingMode(body.length);
+			try (OutputStream out= con.getOutputStream()) {
+				out.write(body);
+			}
+			int status= con.getResponseCode();
+			try (InputStream in= (status < 400) ? con.getInputStream() : con.getErrorStream()) {
+				String response= (in == null) ? "" : readAll(in);
+				return (status == 200) ? response.trim() : null;
+			}
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static String readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream buf= new ByteArrayOutputStream();
+		in.transferTo(buf);
+		return buf.toString(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,92 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.pam_exchange.securetomcat.PAMCredentialHandler;
+
+/**
+ * PAMCredentialHandler.matches for a login with the right and with a wrong
+ * password, and for an alias without password in PAM.
+ *
+ * The path measured follows the pam.credentialhandler.* properties in 
+ * the benchmark catalina.properties. With the defaults every login calls
+ * A2A, which takes cspm.stub.latency microseconds. The status codes of the 
+ * missing alias are set with cspm.stub.status.[alias].
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations= 3, time= 1)
+@Measurement(iterations= 5, time= 1)
+@Fork(1)
+public class CredentialHandlerBenchmark {
+
+	private static final String PROPERTY_LOGIN_ALIAS= "benchmark.login.alias";
+	private static final String PROPERTY_MISSING_ALIAS= "benchmark.missing.alias";
+
+	private PAMCredentialHandler handler;
+	private String alias;
+	private String missingAlias;
+	private String password;
+
+	@Setup
+	public void setup() throws Exception {
+		handler= new PAMCredentialHandler();
+		alias= Fixtures.property(PROPERTY_LOGIN_ALIAS, "benchmark-login");
+		missingAlias= Fixtures.property(PROPERTY_MISSING_ALIAS, "benchmark-missing");
+		password= Fixtures.newPam().getPassword(alias);
+		if (!handler.matches(password, alias)) {
+			throw new IllegalStateException("Login with alias '"+alias+"' failed");
+		}
+	}
+
+	@Benchmark
+	public boolean matches() {
+		return handler.matches(password, alias);
+	}
+
+	@Benchmark
+	public boolean wrongPassword() {
+		return handler.matches("wrong", alias);
+	}
+
+	@Benchmark
+	public boolean missingAlias() {
+		return handler.matches(password, missingAlias);
+	}
+}
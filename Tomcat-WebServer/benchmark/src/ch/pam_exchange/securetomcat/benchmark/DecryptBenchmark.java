@@ -0,0 +1,94 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.benchmark;
+
+import java.security.Key;
+import java.util.concurrent.TimeUnit;
+
+import org.jose4j.jwa.AlgorithmConstraints;
+import org.jose4j.jwa.AlgorithmConstraints.ConstraintType;
+import org.jose4j.jwe.ContentEncryptionAlgorithmIdentifiers;
+import org.jose4j.jwe.JsonWebEncryption;
+import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.pam_exchange.securetomcat.JweDecryptor;
+
+/**
+ * Decryption of a token only, JweDecryptor as used by Message compared
+ * with jose4j as used before. No replay store, no claims parsing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations= 3, time= 1)
+@Measurement(iterations= 5, time= 1)
+@Fork(1)
+public class DecryptBenchmark {
+
+	@Param({"64", "4096"})
+	public int userData;
+
+	private Key key;
+	private JweDecryptor decryptor;
+	private AlgorithmConstraints keyConstraints;
+	private AlgorithmConstraints contentConstraints;
+	private String token;
+
+	@Setup
+	public void setup() throws Exception {
+		String alias= Fixtures.property(Fixtures.PROPERTY_JWT_ALIAS, null);
+		key= Fixtures.jwtKey(Fixtures.newPam(), alias);
+		decryptor= new JweDecryptor(key);
+		keyConstraints= new AlgorithmConstraints(ConstraintType.PERMIT, KeyManagementAlgorithmIdentifiers.A128KW);
+		contentConstraints= new AlgorithmConstraints(ConstraintType.PERMIT, ContentEncryptionAlgorithmIdentifiers.AES_128_CBC_HMAC_SHA_256);
+		token= Fixtures.mintTokens(key, true, 1, userData, -60, 60)[0];
+	}
+
+	@Benchmark
+	public byte[] jweDecryptor() throws Exception {
+		return decryptor.decryptBytes(token);
+	}
+
+	@Benchmark
+	public String jose4j() throws Exception {
+		JsonWebEncryption jwe= new JsonWebEncryption();
+		jwe.setAlgorithmConstraints(keyConstraints);
+		jwe.setContentEncryptionAlgorithmConstraints(contentConstraints);
+		jwe.setKey(key);
+		jwe.setCompactSerialization(token);
+		return jwe.getPayload();
+	}
+}
@@ -0,0 +1,82 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.benchmark;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+
+import ch.pam_exchange.securetomcat.echoApp.EchoApp;
+import ch.pam_exchange.securetomcat.echoApp.EchoAsync;
+import ch.pam_exchange.securetomcat.echoApp.SharedMessage;
+
+/**
+ * Embedded Tomcat running the echoApp, the target of the LoadGenerator 
+ * in SampleClient. The A2A calls go to the stub CSPMClient, the server 
+ * runs without PAM.
+ *
+ * Usage: EchoServer [port [maxThreads]]
+ *
+ * The echoApp is at http://localhost:[port]/echoApp/EchoApp and 
+ * /echoApp/EchoAsync. ${catalina.base} must be the benchmark base 
+ * directory, with secureTomcat.jar in its lib directory.
+ */
+public final class EchoServer {
+
+	private EchoServer() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port= (args.length > 0) ? Integer.parseInt(args[0]) : 8080;
+		int maxThreads= (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+
+		Tomcat tomcat= new Tomcat();
+		tomcat.setBaseDir(System.getProperty("catalina.base"));
+		tomcat.setPort(port);
+		Connector connector= tomcat.getConnector();
+		connector.setProperty("maxThreads", Integer.toString(maxThreads));
+
+		Context ctx= tomcat.addContext("/echoApp", null);
+		ctx.addApplicationListener(SharedMessage.class.getName());
+		Tomcat.addServlet(ctx, "EchoApp", new EchoApp());
+		ctx.addServletMappingDecoded("/EchoApp", "EchoApp");
+		Wrapper async= Tomcat.addServlet(ctx, "EchoAsync", new EchoAsync());
+		async.setAsyncSupported(true);
+		ctx.addServletMappingDecoded("/EchoAsync", "EchoAsync");
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				tomcat.stop();
+			}
+			catch (Exception e) {
+				// stopping anyway
+			}
+		}));
+		tomcat.start();
+		System.out.println("[ECHO] echoApp on port "+port+", maxThreads= "+maxThreads);
+		tomcat.getServer().await();
+	}
+}
@@ -0,0 +1,146 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.pam_exchange.securetomcat.PAM;
+
+/**
+ * PAM.sha256File and PAM.checkFilelist on a synthetic filelist.
+ *
+ * The filelist has "files" files of "size" bytes with random content 
+ * (fixed seed), the filelist itself and the secureTomcat.jar in use. The 
+ * expected hash is calculated in the setup, checkFilelist must succeed. 
+ * Files are read through the OS file cache after the first iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations= 3, time= 2)
+@Measurement(iterations= 5, time= 2)
+@Fork(1)
+public class FilelistBenchmark {
+
+	private static final MethodHandle SHA256_FILE= Fixtures.pamMethod("sha256File", String.class, String.class);
+	private static final MethodHandle SHA256_STRING= Fixtures.pamMethod("sha256String", String.class, String.class);
+	private static final MethodHandle CHECK_FILELIST= Fixtures.pamMethod("checkFilelist", Boolean.class, String.class, String.class);
+
+	@Param({"16", "256"})
+	public int files;
+
+	@Param({"4096", "262144"})
+	public int size;
+
+	private PAM pam;
+	private Path dir;
+	private String filelist;
+	private String firstFile;
+	private String expectedHash;
+
+	@Setup
+	public void setup() throws Throwable {
+		pam= Fixtures.newPam();
+		dir= Files.createTempDirectory("securetomcat-benchmark");
+		Random rnd= new Random(files * 31L + size);
+		byte[] content= new byte[size];
+
+		List<String> names= new ArrayList<>();
+		for (int i= 0; i < files; i++) {
+			rnd.nextBytes(content);
+			Path file= dir.resolve("file-"+i+".bin");
+			Files.write(file, content);
+			names.add(normalize(file));
+		}
+		firstFile= names.get(0);
+
+		Path list= dir.resolve("SecureTomcat.filelist");
+		filelist= normalize(list);
+		names.add(filelist);
+		names.add(jarSelfName());
+		Files.write(list, names, StandardCharsets.UTF_8);
+
+		// hashed as done by checkFilelist: "hash filename, hash filename, ..."
+		StringBuilder sb= new StringBuilder();
+		for (String name : names) {
+			if (sb.length() != 0) {
+				sb.append(", ");
+			}
+			sb.append((String)SHA256_FILE.invokeExact(pam, name)).append(' ').append(name);
+		}
+		expectedHash= (String)SHA256_STRING.invokeExact(pam, sb.toString());
+
+		if (!checkFilelist()) {
+			throw new IllegalStateException("Filelist not verified, is secureTomcat.jar in ${catalina.base}/lib used?");
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		Fixtures.deleteTree(dir);
+	}
+
+	@Benchmark
+	public String sha256File() throws Throwable {
+		return (String)SHA256_FILE.invokeExact(pam, firstFile);
+	}
+
+	@Benchmark
+	public Boolean checkFilelist() throws Throwable {
+		return (Boolean)CHECK_FILELIST.invokeExact(pam, filelist, expectedHash);
+	}
+
+	private static String normalize(Path file) {
+		return file.toAbsolutePath().toString().replace("\\", "/");
+	}
+
+	/*
+	 * The jar of the PAM class, named as in checkFilelist
+	 */
+	private static String jarSelfName() {
+		String name= PAM.class.getProtectionDomain().getCodeSource().getLocation().toString().replace("file:/", "");
+		return System.getProperty("os.name").toLowerCase().contains("win") ? name : "/" + name;
+	}
+}
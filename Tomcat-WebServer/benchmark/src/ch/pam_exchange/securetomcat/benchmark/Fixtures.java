@@ -0,0 +1,176 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.benchmark;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.catalina.startup.CatalinaProperties;
+
+import ch.pam_exchange.securetomcat.JweDecryptor;
+import ch.pam_exchange.securetomcat.KeyCache;
+import ch.pam_exchange.securetomcat.PAM;
+
+/**
+ * Shared setup of the benchmarks.
+ *
+ * The PAM instance is created using reflection, which the caller check in 
+ * the PAM constructor accepts. Private methods of PAM are called through 
+ * method handles, so the measured code is the code deployed to Tomcat.
+ */
+final class Fixtures {
+
+	static final String PROPERTY_JWT_ALIAS= "pam.jwt.alias";
+
+	private static final Base64.Encoder B64= Base64.getUrlEncoder().withoutPadding();
+
+	private Fixtures() {
+	}
+
+	static PAM newPam() throws Exception {
+		return PAM.class.getDeclaredConstructor().newInstance();
+	}
+
+	/*
+	 * Handle of a private method in PAM, taking the PAM instance as first argument
+	 */
+	static MethodHandle pamMethod(String name, Class<?> returnType, Class<?>... parameterTypes) {
+		try {
+			MethodHandles.Lookup lookup= MethodHandles.privateLookupIn(PAM.class, MethodHandles.lookup());
+			return lookup.findVirtual(PAM.class, name, MethodType.methodType(returnType, parameterTypes));
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("PAM."+name+" not found", e);
+		}
+	}
+
+	static String property(String name, String defaultValue) {
+		String value= CatalinaProperties.getProperty(name);
+		return (value == null) ? defaultValue : value.trim();
+	}
+
+	static long property(String name, long defaultValue) {
+		return Long.parseLong(property(name, Long.toString(defaultValue)));
+	}
+
+	/*
+	 * AES key of an alias, fetched from PAM and derived the same way as 
+	 * by the KeyCache.
+	 */
+	static Key jwtKey(PAM pam, String alias) throws Exception {
+		String secret= pam.getPassword(alias);
+		if (secret.startsWith("***")) {
+			throw new IllegalStateException("No password for alias '"+alias+"': "+secret);
+		}
+		return KeyCache.deriveKey(secret);
+	}
+
+	/*
+	 * Tokens in the format sent by the sample client, with a unique jti 
+	 * each. The tokens are valid from notBefore to expires (seconds from 
+	 * now). They are encrypted with the JDK directly, jose4j takes longer
+	 * to mint a token than secureTomcat takes to decode it.
+	 */
+	static String[] mintTokens(Key key, boolean withKid, int count, int userDataLength, long notBefore, long expires) throws Exception {
+		String header= withKid
+				? "{\"alg\":\"A128KW\",\"enc\":\"A128CBC-HS256\",\"kid\":\""+new JweDecryptor(key).getKeyId()+"\"}"
+				: "{\"alg\":\"A128KW\",\"enc\":\"A128CBC-HS256\"}";
+		String encodedHeader= B64.encodeToString(header.getBytes(StandardCharsets.UTF_8));
+		String userData= "x".repeat(Math.max(0, userDataLength));
+		long now= System.currentTimeMillis() / 1000;
+		return IntStream.range(0, count).parallel().mapToObj(i -> {
+			byte[] jti= new byte[16];
+			ThreadLocalRandom.current().nextBytes(jti);
+			String claims= "{\"iss\":\"PAM\",\"iat\":"+now+",\"exp\":"+(now + expires)+",\"nbf\":"+(now + notBefore)
+					+",\"userData\":\""+userData+"\",\"jti\":\""+B64.encodeToString(jti)+"\"}";
+			try {
+				return encrypt(key, encodedHeader, claims.getBytes(StandardCharsets.UTF_8));
+			}
+			catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}).toArray(String[]::new);
+	}
+
+	/*
+	 * JWE compact serialization with A128KW and A128CBC-HS256 (RFC 7516, 7518)
+	 */
+	private static String encrypt(Key key, String encodedHeader, byte[] plaintext) throws GeneralSecurityException {
+		ThreadLocalRandom rnd= ThreadLocalRandom.current();
+		byte[] cek= new byte[32];
+		byte[] iv= new byte[16];
+		rnd.nextBytes(cek);
+		rnd.nextBytes(iv);
+
+		Cipher wrap= Cipher.getInstance("AESWrap");
+		wrap.init(Cipher.WRAP_MODE, new SecretKeySpec(key.getEncoded(), "AES"));
+		byte[] encryptedKey= wrap.wrap(new SecretKeySpec(cek, "AES"));
+
+		Cipher aes= Cipher.getInstance("AES/CBC/PKCS5Padding");
+		aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cek, 16, 16, "AES"), new IvParameterSpec(iv));
+		byte[] ciphertext= aes.doFinal(plaintext);
+
+		byte[] aad= encodedHeader.getBytes(StandardCharsets.US_ASCII);
+		Mac mac= Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(cek, 0, 16, "HmacSHA256"));
+		mac.update(aad);
+		mac.update(iv);
+		mac.update(ciphertext);
+		mac.update(ByteBuffer.allocate(8).putLong(aad.length * 8L).array());
+		byte[] tag= Arrays.copyOf(mac.doFinal(), 16);
+
+		return encodedHeader+"."+B64.encodeToString(encryptedKey)+"."+B64.encodeToString(iv)+"."+B64.encodeToString(ciphertext)+"."+B64.encodeToString(tag);
+	}
+
+	static void deleteTree(Path dir) throws IOException {
+		if (dir == null || !Files.exists(dir)) {
+			return;
+		}
+		try (Stream<Path> paths= Files.walk(dir)) {
+			for (Path p : (Iterable<Path>)paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.deleteIfExists(p);
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.benchmark;
+
+import java.security.Key;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.pam_exchange.securetomcat.Message;
+
+/**
+ * Message.jwtDecode with the key cached, as for every request to EchoApp.
+ *
+ * A corpus of tokens with unique jti is minted before each iteration. 
+ * "fresh" decodes each token once, the full path including the replay 
+ * store. When the corpus is used up the tokens are decoded again and 
+ * rejected as replay, the "replayed" counter shows if this happened and
+ * the corpus must be larger. "replay" decodes the same token again and 
+ * again, which is rejected after the decryption.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations= 3, time= 1)
+@Measurement(iterations= 5, time= 1)
+@Fork(1)
+public class JwtDecodeBenchmark {
+
+	@Param({"true", "false"})
+	public boolean kid;
+
+	@Param({"131072"})
+	public int corpus;
+
+	@Param({"64"})
+	public int userData;
+
+	private Message message;
+	private Key key;
+	private String[] tokens;
+	private String replayToken;
+	private final AtomicInteger next= new AtomicInteger();
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Outcome {
+		public long accepted;
+		public long replayed;
+		public long failed;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			accepted= 0;
+			replayed= 0;
+			failed= 0;
+		}
+
+		void count(String result) {
+			if (result == null) {
+				failed++;
+			}
+			else if (result.startsWith("*** ERROR - Token replay")) {
+				replayed++;
+			}
+			else if (result.startsWith("***")) {
+				failed++;
+			}
+			else {
+				accepted++;
+			}
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setupTrial() throws Exception {
+		message= new Message();
+		String alias= Fixtures.property(Fixtures.PROPERTY_JWT_ALIAS, null);
+		key= Fixtures.jwtKey(Fixtures.newPam(), alias);
+		replayToken= Fixtures.mintTokens(key, kid, 1, userData, -60, 60)[0];
+		message.jwtDecode(replayToken);
+	}
+
+	@Setup(Level.Iteration)
+	public void setupIteration() throws Exception {
+		tokens= Fixtures.mintTokens(key, kid, corpus, userData, -60, 60);
+		next.set(0);
+	}
+
+	@Benchmark
+	public String fresh(Outcome outcome) {
+		String result= message.jwtDecode(tokens[Math.floorMod(next.getAndIncrement(), tokens.length)]);
+		outcome.count(result);
+		return result;
+	}
+
+	@Benchmark
+	public String replay(Outcome outcome) {
+		String result= message.jwtDecode(replayToken);
+		outcome.count(result);
+		return result;
+	}
+}
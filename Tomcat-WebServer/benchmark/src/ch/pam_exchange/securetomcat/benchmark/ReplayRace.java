@@ -0,0 +1,149 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.benchmark;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.pam_exchange.securetomcat.CompactReplayIndex;
+import ch.pam_exchange.securetomcat.ReplayJournal;
+import ch.pam_exchange.securetomcat.ReplayStore;
+import ch.pam_exchange.securetomcat.TimingWheelReplayStore;
+
+/**
+ * Check that no duplicate jti gets through a replay store.
+ *
+ * All threads add the same ids, in the same order and starting together,
+ * so each id is added by all threads at about the same time. Exactly one 
+ * add of each id must return true. This is a check and not a benchmark,
+ * the ReplayStoreBenchmark adds unique ids only.
+ *
+ * Usage: ReplayRace [threads [ids [rounds]]]
+ *
+ * Exit code 1 if an id was accepted more than once, or not at all.
+ */
+public final class ReplayRace {
+
+	private static final String[] STORES= {"memory", "compact", "journal"};
+	private static final long TTL= 60;		// seconds
+
+	private ReplayRace() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads= (args.length > 0) ? Integer.parseInt(args[0]) : Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+		int count= (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+		int rounds= (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+		System.out.println("[RACE] threads= "+threads+", ids= "+count+", rounds= "+rounds);
+
+		boolean ok= true;
+		for (String name : STORES) {
+			Path dir= null;
+			ReplayStore store;
+			switch (name) {
+				case "memory":
+					store= new TimingWheelReplayStore(TTL);
+					break;
+				case "compact":
+					store= new CompactReplayIndex(64L*1024*1024);
+					break;
+				default:
+					dir= Files.createTempDirectory("securetomcat-race");
+					store= new ReplayJournal(dir.resolve("replay.journal"), 1048576, 64L*1024*1024, 1000);
+					break;
+			}
+			try {
+				ok&= race(name, store, threads, count, rounds);
+			}
+			finally {
+				if (store instanceof ReplayJournal) {
+					((ReplayJournal)store).close();
+				}
+				Fixtures.deleteTree(dir);
+			}
+		}
+		System.out.println("[RACE] "+(ok ? "OK" : "FAILED"));
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static boolean race(String name, ReplayStore store, int threads, int count, int rounds) throws Exception {
+		long duplicates= 0;
+		long missing= 0;
+		AtomicLong full= new AtomicLong();
+		long start= System.nanoTime();
+		for (int r= 0; r < rounds; r++) {
+			String prefix= UUID.randomUUID().toString()+"-";
+			String[] ids= new String[count];
+			for (int i= 0; i < count; i++) {
+				ids[i]= prefix + i;
+			}
+			AtomicIntegerArray wins= new AtomicIntegerArray(count);
+			CyclicBarrier barrier= new CyclicBarrier(threads);
+			Thread[] workers= new Thread[threads];
+			for (int t= 0; t < threads; t++) {
+				workers[t]= new Thread(() -> {
+					try {
+						barrier.await();
+					}
+					catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+					long deadline= System.currentTimeMillis() / 1000 + TTL;
+					for (int i= 0; i < count; i++) {
+						try {
+							if (store.add(ids[i], deadline)) {
+								wins.incrementAndGet(i);
+							}
+						}
+						catch (ReplayStore.FullException e) {
+							full.incrementAndGet();
+						}
+					}
+				}, "race-"+t);
+				workers[t].start();
+			}
+			for (Thread w : workers) {
+				w.join();
+			}
+			for (int i= 0; i < count; i++) {
+				int w= wins.get(i);
+				if (w > 1) {
+					duplicates+= w - 1;
+				} else if (w == 0) {
+					missing++;
+				}
+			}
+		}
+		double seconds= (System.nanoTime() - start) / 1e9;
+		boolean ok= duplicates == 0 && missing == 0 && full.get() == 0;
+		System.out.println("[RACE] store= "+name+", adds= "+((long)threads * count * rounds)+", time= "+String.format("%.1f", seconds)+" s"
+				+", duplicates accepted= "+duplicates+", ids not accepted= "+missing+", full= "+full.get()+" - "+(ok ? "OK" : "FAILED"));
+		return ok;
+	}
+}
@@ -0,0 +1,146 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.benchmark;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.pam_exchange.securetomcat.CompactReplayIndex;
+import ch.pam_exchange.securetomcat.ReplayJournal;
+import ch.pam_exchange.securetomcat.ReplayStore;
+import ch.pam_exchange.securetomcat.TimingWheelReplayStore;
+
+/**
+ * Adding new token ids to a replay store. Ids are kept for "ttl" seconds, 
+ * with a short ttl the store is cleaned up while ids are added and the 
+ * cost of the cleanup is part of the result. A bounded store which is
+ * full rejects ids, shown by the "full" counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations= 3, time= 1)
+@Measurement(iterations= 5, time= 1)
+@Fork(1)
+public class ReplayStoreBenchmark {
+
+	@Param({"memory", "compact", "journal"})
+	public String store;
+
+	@Param({"1", "5"})
+	public long ttl;		// seconds, the live ids of a long ttl need a large heap
+
+	@Param({"64"})
+	public long memory;		// MB, compact and journal
+
+	private ReplayStore replayStore;
+	private Path journalDir;
+
+	/*
+	 * Unique ids per thread, built the way a jti arrives from the parser
+	 */
+	@State(Scope.Thread)
+	public static class Ids {
+		private final String prefix= UUID.randomUUID().toString()+"-";
+		private long n= 0;
+
+		String next() {
+			return prefix + (n++);
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Outcome {
+		public long added;
+		public long duplicate;
+		public long full;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			added= 0;
+			duplicate= 0;
+			full= 0;
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		switch (store) {
+			case "memory":
+				replayStore= new TimingWheelReplayStore(ttl);
+				break;
+			case "compact":
+				replayStore= new CompactReplayIndex(memory*1024*1024);
+				break;
+			case "journal":
+				journalDir= Files.createTempDirectory("securetomcat-benchmark");
+				replayStore= new ReplayJournal(journalDir.resolve("replay.journal"), 1048576, memory*1024*1024, 1000);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown store "+store);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (replayStore instanceof ReplayJournal) {
+			((ReplayJournal)replayStore).close();
+		}
+		Fixtures.deleteTree(journalDir);
+	}
+
+	@Benchmark
+	public boolean add(Ids ids, Outcome outcome) {
+		try {
+			if (replayStore.add(ids.next(), System.currentTimeMillis() / 1000 + ttl)) {
+				outcome.added++;
+				return true;
+			}
+			outcome.duplicate++;
+		}
+		catch (ReplayStore.FullException e) {
+			outcome.full++;
+		}
+		return false;
+	}
+}
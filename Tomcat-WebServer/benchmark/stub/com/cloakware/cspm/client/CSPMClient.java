@@ -0,0 +1,100 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package com.cloakware.cspm.client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory stand-in for the A2A client, used by the benchmarks only.
+ *
+ * Only the methods used by secureTomcat are provided. No agent is called,
+ * the answers are deterministic and configured with system properties:
+ *
+ * - cspm.stub.latency - Time (in microseconds) each retrieveCredentials takes, default 0
+ * - cspm.stub.status - Status codes returned in turn, e.g. "401,400", default "400"
+ * - cspm.stub.status.[alias] - Status codes for one alias
+ * - cspm.stub.password - Password returned, default "benchmark"
+ * - cspm.stub.password.[alias] - Password for one alias
+ *
+ * The status codes of an alias are returned in the order listed, starting
+ * over after the last. Every alias has its own position in the list.
+ */
+public class CSPMClient {
+
+	private static final String PROPERTY_LATENCY= "cspm.stub.latency";
+	private static final String PROPERTY_STATUS= "cspm.stub.status";
+	private static final String PROPERTY_PASSWORD= "cspm.stub.password";
+
+	private static final long LATENCY_NANOS= Long.getLong(PROPERTY_LATENCY, 0) * 1000;
+	private static final String[] STATUS= System.getProperty(PROPERTY_STATUS, "400").split(",");
+	private static final String PASSWORD= System.getProperty(PROPERTY_PASSWORD, "benchmark");
+
+	private static final Map<String,AtomicLong> calls= new ConcurrentHashMap<>();
+
+	private String alias;
+	private String statusCode= "999";
+
+	public void retrieveCredentials(String alias, Boolean bypassCache) {
+		this.alias= alias;
+		long n= calls.computeIfAbsent(alias, a -> new AtomicLong()).getAndIncrement();
+		String[] status= statusOf(alias);
+		statusCode= status[(int)(n % status.length)].trim();
+		if (LATENCY_NANOS > 0) {
+			// parkNanos may return early, wait for the full latency
+			long deadline= System.nanoTime() + LATENCY_NANOS;
+			for (long left= LATENCY_NANOS; left > 0; left= deadline - System.nanoTime()) {
+				LockSupport.parkNanos(left);
+			}
+		}
+	}
+
+	public void retrieveCredentials(String alias, String bypassCache) {
+		retrieveCredentials(alias, Boolean.valueOf(bypassCache));
+	}
+
+	public String getStatusCode() {
+		return statusCode;
+	}
+
+	public String getUserId() {
+		return "400".equals(statusCode) ? alias : null;
+	}
+
+	public String getPassword() {
+		return "400".equals(statusCode) ? System.getProperty(PROPERTY_PASSWORD+"."+alias, PASSWORD) : null;
+	}
+
+	public String getMessage() {
+		return "400".equals(statusCode) ? "OK" : "stub status "+statusCode;
+	}
+
+	private static String[] statusOf(String alias) {
+		String status= System.getProperty(PROPERTY_STATUS+"."+alias);
+		return (status == null) ? STATUS : status.split(",");
+	}
+}
@@ -68,10 +68,11 @@ public class EchoApp extends HttpServlet {
 	private static final String LOGGER_NAME= "ch.pam_exchange.secureTomcat";
 	private final Logger LOGGER=Logger.getLogger(LOGGER_NAME);
 	private int callCnt;
-	private Message msg= new Message();
+	private Message msg;
 
 	public void init() throws ServletException {
 		callCnt= 0;
+		msg= SharedMessage.get(getServletContext());
 	} 
  
     /**
@@ -0,0 +1,388 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.echoApp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.annotation.WebInitParam;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import ch.pam_exchange.securetomcat.Message;
+
+/**
+ * Asynchronous version of EchoApp.
+ *
+ * The body is read with a ReadListener into pooled chunks, taken as the
+ * data arrives, the token is decoded on a separate executor and the 
+ * response is written with a WriteListener. No container thread waits for
+ * a slow client or for the decode, so a small number of threads can serve
+ * many open connections. A request timed out or failed releases its chunks
+ * and is not decoded or written.
+ *
+ * Init parameters
+ * - maxBytes   Max size of the body, larger requests get 413
+ * - threads    Number of threads decoding tokens
+ * - queue      Number of tokens waiting for a thread, further requests get 503
+ * - buffers    Number of body chunks (4 KB) kept for reuse
+ * - timeout    Timeout (in ms) of a request, it gets 503
+ */
+@WebServlet(description = "EchoAsync", urlPatterns = { "/EchoAsync" , "/EchoAsync.do"}, asyncSupported = true, initParams = {@WebInitParam(name="maxBytes",value="65536")})
+public class EchoAsync extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+	public static final String MSG_ERR_EXCEPTION= "*** ERROR - Exception ***";
+	public static final String MSG_ERR_KEY_NOT_AVAILABLE= "*** ERROR - Key not available ***";
+
+	private static final int DEFAULT_MAX_BYTES= 64*1024;
+	private static final int DEFAULT_QUEUE= 1024;
+	private static final int DEFAULT_BUFFERS= 256;
+	private static final int DEFAULT_TIMEOUT= 30000;
+	private static final int WRITE_CHUNK= 8192;
+	private static final int BODY_CHUNK= 4096;
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.secureTomcat";
+	private final Logger LOGGER=Logger.getLogger(LOGGER_NAME);
+	private Message msg;
+	private int maxBytes;
+	private int timeout;
+	private BufferPool buffers;
+	private ThreadPoolExecutor executor;
+
+	public void init() throws ServletException {
+		msg= SharedMessage.get(getServletContext());
+		maxBytes= intParameter("maxBytes", DEFAULT_MAX_BYTES);
+		timeout= intParameter("timeout", DEFAULT_TIMEOUT);
+		buffers= new BufferPool(intParameter("buffers", DEFAULT_BUFFERS), BODY_CHUNK);
+		int threads= intParameter("threads", Runtime.getRuntime().availableProcessors());
+		int queue= intParameter("queue", DEFAULT_QUEUE);
+
+		AtomicInteger n= new AtomicInteger();
+		executor= new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queue), r -> {
+			Thread t= new Thread(r, "echoapp-async-"+n.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		executor.allowCoreThreadTimeOut(true);
+		LOGGER.fine("maxBytes= "+maxBytes+", threads= "+threads+", queue= "+queue);
+	}
+
+	public void destroy() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (request.getContentLengthLong() > maxBytes) {
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Body larger than "+maxBytes+" bytes");
+			return;
+		}
+		AsyncContext ac= request.startAsync();
+		ac.setTimeout(timeout);
+		ServletInputStream in= request.getInputStream();
+		BodyReader reader= new BodyReader(ac, in);
+		ac.addListener(reader);
+		in.setReadListener(reader);
+	}
+
+	/*
+	 * Collect the body, then hand the token to the executor. The request is
+	 * done once it is completed, here or by the container on a timeout or 
+	 * error, and then neither decoded nor written.
+	 */
+	private final class BodyReader implements ReadListener, AsyncListener {
+		private final AsyncContext ac;
+		private final ServletInputStream in;
+		private final List<byte[]> chunks= new ArrayList<>();		// guarded by this
+		private int len;
+		private final AtomicBoolean done= new AtomicBoolean(false);
+
+		BodyReader(AsyncContext ac, ServletInputStream in) {
+			this.ac= ac;
+			this.in= in;
+		}
+
+		@Override
+		public synchronized void onDataAvailable() throws IOException {
+			int n;
+			do {
+				if (done.get() || !in.isReady()) {
+					return;
+				}
+				int off= len % BODY_CHUNK;
+				if (off == 0 && len / BODY_CHUNK == chunks.size()) {
+					chunks.add(buffers.acquire());
+				}
+				n= in.read(chunks.get(len / BODY_CHUNK), off, BODY_CHUNK - off);
+				if (n > 0) {
+					len+= n;
+				}
+			} while (n > 0 && len <= maxBytes);
+			if (len > maxBytes) {
+				fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+			}
+		}
+
+		@Override
+		public void onAllDataRead() throws IOException {
+			String token;
+			synchronized (this) {
+				if (done.get()) {
+					return;
+				}
+				byte[] body= new byte[len];
+				for (int i= 0; i < chunks.size(); i++) {
+					System.arraycopy(chunks.get(i), 0, body, i * BODY_CHUNK, Math.min(BODY_CHUNK, len - i * BODY_CHUNK));
+				}
+				token= new String(body, StandardCharsets.UTF_8);
+				Arrays.fill(body, (byte)0);
+				release();
+			}
+			try {
+				executor.execute(() -> decode(this, token));
+			}
+			catch (RejectedExecutionException e) {
+				LOGGER.warning("Decode queue full");
+				fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			LOGGER.fine("Read failed: "+t);
+			complete();
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			LOGGER.fine("Request timed out");
+			fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			LOGGER.fine("Request failed: "+event.getThrowable());
+			complete();
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			done.set(true);
+			release();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+		}
+
+		boolean isDone() {
+			return done.get();
+		}
+
+		/*
+		 * Complete the request, if not done already
+		 */
+		void complete() {
+			if (!done.compareAndSet(false, true)) {
+				return;
+			}
+			release();
+			try {
+				ac.complete();
+			}
+			catch (IllegalStateException e) {
+				// Completed by the container meanwhile
+			}
+		}
+
+		/*
+		 * Send an error status and complete the request, if not done already
+		 */
+		void fail(int status) {
+			if (done.get()) {
+				return;
+			}
+			try {
+				((HttpServletResponse)ac.getResponse()).sendError(status);
+			}
+			catch (IOException | IllegalStateException e) {
+				LOGGER.fine("Error status not sent: "+e);
+			}
+			complete();
+		}
+
+		private synchronized void release() {
+			for (int i= 0; i < chunks.size(); i++) {
+				buffers.release(chunks.get(i), len - i * BODY_CHUNK);
+			}
+			chunks.clear();
+		}
+	}
+
+	private void decode(BodyReader request, String token) {
+		if (request.isDone()) {
+			return;
+		}
+		LOGGER.fine("userData= "+token);
+		String plain;
+		try {
+			plain= msg.jwtDecode(token);
+		}
+		catch (RuntimeException e) {
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+			plain= MSG_ERR_EXCEPTION;
+		}
+		if (plain == null) {
+			LOGGER.warning("Decryption key not available");
+			plain= MSG_ERR_KEY_NOT_AVAILABLE;
+		}
+		LOGGER.fine("plaintext= "+plain);
+		LOGGER.info("cnt= "+msg.getCnt());
+
+		// The writer completes the request, any other outcome must complete it here
+		boolean writing= false;
+		try {
+			if (request.isDone()) {
+				return;
+			}
+			HttpServletResponse response= (HttpServletResponse)request.ac.getResponse();
+			response.setContentType("text/html");
+			response.setCharacterEncoding("UTF-8");
+			ServletOutputStream out= response.getOutputStream();
+			out.setWriteListener(new BodyWriter(request, out, plain.getBytes(StandardCharsets.UTF_8)));
+			writing= true;
+		}
+		catch (IOException | RuntimeException e) {
+			LOGGER.fine("Write failed: "+e);
+		}
+		finally {
+			if (!writing) {
+				request.complete();
+			}
+		}
+	}
+
+	/*
+	 * Write the response as far as the client accepts it, continue when
+	 * the container calls again
+	 */
+	private static final class BodyWriter implements WriteListener {
+		private final BodyReader request;
+		private final ServletOutputStream out;
+		private final byte[] data;
+		private int pos;
+
+		BodyWriter(BodyReader request, ServletOutputStream out, byte[] data) {
+			this.request= request;
+			this.out= out;
+			this.data= data;
+		}
+
+		@Override
+		public void onWritePossible() throws IOException {
+			while (!request.isDone() && out.isReady()) {
+				if (pos == data.length) {
+					request.complete();
+					return;
+				}
+				int n= Math.min(WRITE_CHUNK, data.length - pos);
+				out.write(data, pos, n);
+				pos+= n;
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			request.complete();
+		}
+	}
+
+	/*
+	 * Chunks for request bodies. The used part of a chunk is cleared
+	 * before it is put back, the body is a token. When the pool is empty a new chunk is 
+	 * allocated, when it is full a returned chunk is dropped.
+	 */
+	private static final class BufferPool {
+		private final BlockingQueue<byte[]> pool;
+		private final int size;
+
+		BufferPool(int capacity, int size) {
+			this.pool= new ArrayBlockingQueue<>(capacity);
+			this.size= size;
+		}
+
+		byte[] acquire() {
+			byte[] buffer= pool.poll();
+			return (buffer != null) ? buffer : new byte[size];
+		}
+
+		void release(byte[] buffer, int len) {
+			Arrays.fill(buffer, 0, Math.max(0, Math.min(len, buffer.length)), (byte)0);
+			pool.offer(buffer);
+		}
+	}
+
+	private int intParameter(String name, int defaultValue) {
+		String value= getInitParameter(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			int v= Integer.parseInt(value.trim());
+			if (v > 0) {
+				return v;
+			}
+		}
+		catch (Exception e) {
+			// fall through
+		}
+		LOGGER.info("Value of init parameter '"+name+"' invalid, using default "+defaultValue);
+		return defaultValue;
+	}
+}
@@ -0,0 +1,256 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.echoApp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebInitParam;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+
+import ch.pam_exchange.securetomcat.Message;
+
+/**
+ * Batch version of EchoApp. Decodes many tokens in one request.
+ *
+ * The body is either a JSON array of tokens, or one token per line 
+ * (newline-delimited). The tokens are decoded in parallel on a bounded pool
+ * and the results are returned in the order of the input, as a JSON array
+ * or as one JSON string per line. The replay check is done per token, a 
+ * token repeated in a batch is accepted once.
+ *
+ * Init parameters
+ * - maxItems   Max number of tokens in a batch
+ * - maxBytes   Max size of the body
+ * - threads    Number of threads decoding tokens
+ */
+@WebServlet(description = "EchoBatch", urlPatterns = { "/EchoBatch" , "/EchoBatch.do"}, initParams = {@WebInitParam(name="maxItems",value="1000"),@WebInitParam(name="maxBytes",value="4194304")})
+public class EchoBatch extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+	public static final String MSG_ERR_INVALID_DATA= "*** ERROR - Invalid data ***";
+	public static final String MSG_ERR_EXCEPTION= "*** ERROR - Exception ***";
+
+	private static final int DEFAULT_MAX_ITEMS= 1000;
+	private static final int DEFAULT_MAX_BYTES= 4*1024*1024;
+	private static final int QUEUE_SIZE= 1024;
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.secureTomcat";
+	private final Logger LOGGER=Logger.getLogger(LOGGER_NAME);
+	private Message msg;
+	private int maxItems;
+	private int maxBytes;
+	private ThreadPoolExecutor executor;
+
+	public void init() throws ServletException {
+		msg= SharedMessage.get(getServletContext());
+		maxItems= intParameter("maxItems", DEFAULT_MAX_ITEMS);
+		maxBytes= intParameter("maxBytes", DEFAULT_MAX_BYTES);
+		int threads= intParameter("threads", Runtime.getRuntime().availableProcessors());
+
+		// When the queue is full, the request thread decodes the token itself
+		AtomicInteger n= new AtomicInteger();
+		executor= new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+			Thread t= new Thread(r, "echoapp-batch-"+n.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}, new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		LOGGER.fine("maxItems= "+maxItems+", maxBytes= "+maxBytes+", threads= "+threads);
+	}
+
+	public void destroy() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (request.getContentLengthLong() > maxBytes) {
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Batch larger than "+maxBytes+" bytes");
+			return;
+		}
+		String body= readBody(request.getInputStream());
+		if (body == null) {
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Batch larger than "+maxBytes+" bytes");
+			return;
+		}
+
+		boolean jsonArray= body.stripLeading().startsWith("[");
+		List<String> tokens= jsonArray ? parseArray(body) : parseLines(body);
+		if (tokens == null) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, MSG_ERR_INVALID_DATA);
+			return;
+		}
+		if (tokens.size() > maxItems) {
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Batch with more than "+maxItems+" items");
+			return;
+		}
+		LOGGER.info("batch size= "+tokens.size());
+
+		List<Callable<String>> tasks= new ArrayList<>(tokens.size());
+		for (String token : tokens) {
+			tasks.add(() -> token == null ? MSG_ERR_INVALID_DATA : msg.jwtDecode(token));
+		}
+		List<String> results= new ArrayList<>(tokens.size());
+		try {
+			for (Future<String> f : executor.invokeAll(tasks)) {
+				results.add(result(f));
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+		LOGGER.info("cnt= "+msg.getCnt());
+
+		PrintWriter out;
+		if (jsonArray) {
+			response.setContentType("application/json");
+			response.setCharacterEncoding("UTF-8");
+			out= response.getWriter();
+			out.append(JSONArray.toJSONString(results));
+		}
+		else {
+			response.setContentType("application/x-ndjson");
+			response.setCharacterEncoding("UTF-8");
+			out= response.getWriter();
+			for (String r : results) {
+				out.append('"').append(JSONValue.escape(r)).append("\"\n");
+			}
+		}
+		out.close();
+	}
+
+	private String result(Future<String> f) {
+		try {
+			String r= f.get();
+			return (r != null) ? r : MSG_ERR_EXCEPTION;
+		}
+		catch (InterruptedException | ExecutionException e) {
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+			return MSG_ERR_EXCEPTION;
+		}
+	}
+
+	/*
+	 * Read the body, null if it is larger than maxBytes
+	 */
+	private String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body= new ByteArrayOutputStream();
+		byte[] buffer= new byte[8192];
+		int bytesRead;
+		while ((bytesRead= in.read(buffer)) > 0) {
+			if (body.size() + bytesRead > maxBytes) {
+				return null;
+			}
+			body.write(buffer, 0, bytesRead);
+		}
+		return body.toString(StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * JSON array of tokens. An item which is not a string is kept as null 
+	 * and gets an invalid data result.
+	 */
+	private List<String> parseArray(String body) {
+		try {
+			Object parsed= new JSONParser().parse(body);
+			if (!(parsed instanceof JSONArray)) {
+				return null;
+			}
+			List<String> tokens= new ArrayList<>();
+			for (Object o : (JSONArray)parsed) {
+				tokens.add((o instanceof String) ? (String)o : null);
+				if (tokens.size() > maxItems) {
+					break;
+				}
+			}
+			return tokens;
+		}
+		catch (Exception e) {
+			LOGGER.warning("Invalid JSON array: "+e.getMessage());
+			return null;
+		}
+	}
+
+	/*
+	 * One token per line, empty lines are skipped
+	 */
+	private List<String> parseLines(String body) {
+		List<String> tokens= new ArrayList<>();
+		for (String line : body.split("\n")) {
+			line= line.trim();
+			if (!line.isEmpty()) {
+				tokens.add(line);
+				if (tokens.size() > maxItems) {
+					break;
+				}
+			}
+		}
+		return tokens;
+	}
+
+	private int intParameter(String name, int defaultValue) {
+		String value= getInitParameter(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			int v= Integer.parseInt(value.trim());
+			if (v > 0) {
+				return v;
+			}
+		}
+		catch (Exception e) {
+			// fall through
+		}
+		LOGGER.info("Value of init parameter '"+name+"' invalid, using default "+defaultValue);
+		return defaultValue;
+	}
+}
@@ -0,0 +1,70 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat.echoApp;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+
+import ch.pam_exchange.securetomcat.Message;
+
+/**
+ * One Message per web application, shared by the servlets. The replay 
+ * check and the key cache of a Message only work when all servlets 
+ * decoding tokens use the same instance.
+ *
+ * The Message is closed when the web application is stopped, which
+ * releases the replay journal or the cluster port before a reload.
+ */
+@WebListener
+public final class SharedMessage implements ServletContextListener {
+
+	private static final String ATTRIBUTE= Message.class.getName();
+
+	public static Message get(ServletContext context) {
+		synchronized (context) {
+			Message msg= (Message)context.getAttribute(ATTRIBUTE);
+			if (msg == null) {
+				msg= new Message();
+				context.setAttribute(ATTRIBUTE, msg);
+			}
+			return msg;
+		}
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		ServletContext context= event.getServletContext();
+		Message msg;
+		synchronized (context) {
+			msg= (Message)context.getAttribute(ATTRIBUTE);
+			context.removeAttribute(ATTRIBUTE);
+		}
+		if (msg != null) {
+			msg.close();
+		}
+	}
+}
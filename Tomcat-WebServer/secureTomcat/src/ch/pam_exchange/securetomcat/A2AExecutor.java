@@ -0,0 +1,119 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.catalina.startup.CatalinaProperties;
+
+/**
+ * Threads used for asynchronous A2A calls.
+ *
+ * The blocking CSPMClient calls run on a small bounded pool of platform
+ * threads. The A2A client calls native code, which would pin the carrier
+ * of a virtual thread anyway. Retries and deadlines are scheduled on a
+ * single timer thread, no thread sleeps while waiting.
+ *
+ * The pools are created on first use.
+ */
+final class A2AExecutor {
+
+	private static final String PROPERTY_A2A_THREADS= "pam.a2a.threads";
+	private static final String PROPERTY_A2A_TIMEOUT= "pam.a2a.timeout";
+	private static final int DEFAULT_A2A_THREADS= 4;
+	private static final long DEFAULT_A2A_TIMEOUT= 5000;	// Deadline (in ms) of an asynchronous A2A call
+	private static final int QUEUE_SIZE= 256;
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat";
+	private static final Logger LOGGER= Logger.getLogger(LOGGER_NAME);
+
+	private A2AExecutor() {
+	}
+
+	private static final class Holder {
+		static final int THREADS= (int)readProperty(PROPERTY_A2A_THREADS, DEFAULT_A2A_THREADS);
+		static final long TIMEOUT= readProperty(PROPERTY_A2A_TIMEOUT, DEFAULT_A2A_TIMEOUT);
+		static final ExecutorService EXECUTOR= new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(QUEUE_SIZE), daemonThreads("securetomcat-a2a"));
+		static final ScheduledExecutorService SCHEDULER= Executors.newSingleThreadScheduledExecutor(daemonThreads("securetomcat-a2a-timer"));
+
+		static {
+			((ThreadPoolExecutor)EXECUTOR).allowCoreThreadTimeOut(true);
+			LOGGER.fine("threads= "+THREADS+", timeout= "+TIMEOUT);
+		}
+	}
+
+	/*
+	 * Executor for blocking A2A calls. Rejects tasks when the queue is full.
+	 */
+	static ExecutorService executor() {
+		return Holder.EXECUTOR;
+	}
+
+	/*
+	 * Timer for retries and deadlines
+	 */
+	static ScheduledExecutorService scheduler() {
+		return Holder.SCHEDULER;
+	}
+
+	static long timeoutMillis() {
+		return Holder.TIMEOUT;
+	}
+
+	private static ThreadFactory daemonThreads(String name) {
+		AtomicInteger n= new AtomicInteger();
+		return r -> {
+			Thread t= new Thread(r, name+"-"+n.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	private static long readProperty(String name, long defaultValue) {
+		String value= CatalinaProperties.getProperty(name);
+		if (value != null) {
+			try {
+				long v= Long.parseLong(value.trim());
+				if (v > 0) {
+					return v;
+				}
+			}
+			catch (Exception e) {
+				// fall through
+			}
+			LOGGER.info("Value of property '"+name+"' invalid, using default "+defaultValue);
+		}
+		return defaultValue;
+	}
+}
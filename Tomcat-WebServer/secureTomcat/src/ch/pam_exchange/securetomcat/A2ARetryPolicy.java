@@ -0,0 +1,250 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import org.apache.catalina.startup.CatalinaProperties;
+
+/**
+ * Retry policy and circuit breaker for A2A calls.
+ *
+ * Status codes are either retryable (default 401) or fatal. A retryable
+ * code is tried again after an exponential backoff with jitter, up to a
+ * maximum number of tries. A fatal code is returned at once.
+ *
+ * A fetch ending with an exception, a timeout or a busy executor is a 
+ * failure of the agent. After a number of consecutive failures the circuit
+ * opens and calls fail at once, instead of waiting for an agent which does
+ * not answer. When the open time has passed, a single trial call is let 
+ * through. The circuit closes if it succeeds and opens again if it fails.
+ * A trial call without an outcome within the open time is replaced by a
+ * new trial call, a hanging call does not keep the circuit half-open.
+ *
+ * Any status code means the agent did answer and does not count as a 
+ * failure, also when a retryable code is returned until the retries are
+ * used up. An unknown or unauthorized alias gets 401 as well, and must not
+ * open the circuit for the other aliases.
+ *
+ * With the defaults a call waits at most 25+50+100+200+5*250 ms = 1.6 s 
+ * in backoff, less than the 9*250 ms of the fixed delay used before.
+ */
+public class A2ARetryPolicy {
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private static final String PROPERTY_RETRY_CODES= "pam.a2a.retry.codes";
+	private static final String PROPERTY_RETRY_TRIES= "pam.a2a.retry.tries";
+	private static final String PROPERTY_RETRY_DELAY= "pam.a2a.retry.delay";
+	private static final String PROPERTY_RETRY_MAX_DELAY= "pam.a2a.retry.maxdelay";
+	private static final String PROPERTY_CIRCUIT_FAILURES= "pam.a2a.circuit.failures";
+	private static final String PROPERTY_CIRCUIT_OPEN= "pam.a2a.circuit.open";
+	private static final String DEFAULT_RETRY_CODES= "401";
+	private static final int DEFAULT_RETRY_TRIES= 10;
+	private static final long DEFAULT_RETRY_DELAY= 25;		// First backoff (in ms)
+	private static final long DEFAULT_RETRY_MAX_DELAY= 250;	// Max backoff (in ms)
+	private static final int DEFAULT_CIRCUIT_FAILURES= 5;
+	private static final long DEFAULT_CIRCUIT_OPEN= 10000;		// Time (in ms) the circuit stays open
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat";
+	private static final Logger LOGGER= Logger.getLogger(LOGGER_NAME);
+
+	private final Set<String> retryCodes;
+	private final int maxTries;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final int failureThreshold;
+	private final long openMillis;
+
+	private final AtomicReference<State> state= new AtomicReference<>(State.CLOSED);
+	private final AtomicInteger consecutiveFailures= new AtomicInteger();
+	private final AtomicLong openedAt= new AtomicLong();	// time the circuit opened, or the last trial call started
+	private final AtomicLong opened= new AtomicLong();
+	private final AtomicLong rejected= new AtomicLong();
+
+	private static final class Holder {
+		static final A2ARetryPolicy SHARED= fromProperties();
+	}
+
+	public A2ARetryPolicy(Set<String> retryCodes, int maxTries, long baseDelay, long maxDelay, int failureThreshold, long openMillis) {
+		this.retryCodes= Set.copyOf(retryCodes);
+		this.maxTries= maxTries;
+		this.baseDelay= baseDelay;
+		this.maxDelay= Math.max(baseDelay, maxDelay);
+		this.failureThreshold= failureThreshold;
+		this.openMillis= openMillis;
+		LOGGER.fine("retryCodes= "+this.retryCodes+", maxTries= "+maxTries+", baseDelay= "+baseDelay+", maxDelay= "+this.maxDelay
+				+", failureThreshold= "+failureThreshold+", openMillis= "+openMillis);
+	}
+
+	/*
+	 * The policy used for all A2A calls, one per agent
+	 */
+	public static A2ARetryPolicy shared() {
+		return Holder.SHARED;
+	}
+
+	/*
+	 * Is a call allowed? Open circuit rejects calls until the open time has
+	 * passed, then one trial call is allowed. If the trial call has no 
+	 * outcome within the open time, another trial call is allowed.
+	 */
+	public boolean allowRequest() {
+		State s= state.get();
+		if (s == State.CLOSED) {
+			return true;
+		}
+		long since= openedAt.get();
+		long now= System.currentTimeMillis();
+		if (now - since >= openMillis && openedAt.compareAndSet(since, now)) {
+			if (state.compareAndSet(s, State.HALF_OPEN)) {
+				if (s == State.OPEN) {
+					LOGGER.info("A2A circuit half-open, trial call");
+				} else {
+					LOGGER.warning("A2A circuit trial call without outcome after "+openMillis+" ms, new trial call");
+				}
+				return true;
+			}
+			if (state.get() == State.CLOSED) {
+				return true;
+			}
+		}
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	public boolean isRetryable(String statusCode) {
+		return retryCodes.contains(statusCode);
+	}
+
+	/*
+	 * Is there a retry after this attempt (0 based)?
+	 */
+	public boolean canRetry(int attempt) {
+		return attempt + 1 < maxTries;
+	}
+
+	/*
+	 * Backoff before the next try. Exponential with jitter, the delay is
+	 * taken at random between half and the full backoff for the attempt.
+	 */
+	public long backoff(int attempt) {
+		long delay= baseDelay << Math.min(attempt, 20);
+		if (delay <= 0 || delay > maxDelay) {
+			delay= maxDelay;
+		}
+		long half= delay / 2;
+		return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+	}
+
+	/*
+	 * The agent answered, with any status code
+	 */
+	public void onSuccess() {
+		consecutiveFailures.set(0);
+		if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+			LOGGER.info("A2A circuit closed");
+		}
+	}
+
+	/*
+	 * The agent did not answer
+	 */
+	public void onFailure() {
+		int failures= consecutiveFailures.incrementAndGet();
+		State s= state.get();
+		if (s == State.HALF_OPEN || (s == State.CLOSED && failures >= failureThreshold)) {
+			// set the time first, a caller seeing OPEN must not find an old time
+			openedAt.set(System.currentTimeMillis());
+			if (!state.compareAndSet(s, State.OPEN)) {
+				return;
+			}
+			opened.incrementAndGet();
+			LOGGER.severe("A2A circuit open for "+openMillis+" ms after "+failures+" failures");
+		}
+	}
+
+	public State getState() {
+		return state.get();
+	}
+
+	public int getConsecutiveFailures() {
+		return consecutiveFailures.get();
+	}
+
+	/*
+	 * Number of times the circuit was opened
+	 */
+	public long getOpenedCount() {
+		return opened.get();
+	}
+
+	/*
+	 * Number of calls rejected by an open circuit
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	private static A2ARetryPolicy fromProperties() {
+		Set<String> codes= new HashSet<>();
+		String value= CatalinaProperties.getProperty(PROPERTY_RETRY_CODES);
+		for (String code : (value != null ? value : DEFAULT_RETRY_CODES).split(",")) {
+			if (!code.isBlank()) {
+				codes.add(code.trim());
+			}
+		}
+		codes.remove("400");
+		return new A2ARetryPolicy(codes,
+				(int)readProperty(PROPERTY_RETRY_TRIES, DEFAULT_RETRY_TRIES),
+				readProperty(PROPERTY_RETRY_DELAY, DEFAULT_RETRY_DELAY),
+				readProperty(PROPERTY_RETRY_MAX_DELAY, DEFAULT_RETRY_MAX_DELAY),
+				(int)readProperty(PROPERTY_CIRCUIT_FAILURES, DEFAULT_CIRCUIT_FAILURES),
+				readProperty(PROPERTY_CIRCUIT_OPEN, DEFAULT_CIRCUIT_OPEN));
+	}
+
+	private static long readProperty(String name, long defaultValue) {
+		String value= CatalinaProperties.getProperty(name);
+		if (value != null) {
+			try {
+				long v= Long.parseLong(value.trim());
+				if (v > 0) {
+					return v;
+				}
+			}
+			catch (Exception e) {
+				// fall through
+			}
+			LOGGER.info("Value of property '"+name+"' invalid, using default "+defaultValue);
+		}
+		return defaultValue;
+	}
+}
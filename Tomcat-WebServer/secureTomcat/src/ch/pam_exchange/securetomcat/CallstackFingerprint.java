@@ -0,0 +1,159 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SHA-256 fingerprint of the callstack.
+ *
+ * Class, method and line of each frame go straight into the digest, no 
+ * callstack string is built. The digest is the same as the SHA-256 of the 
+ * string "class.method:line, class.method:line, ..." built from the frames.
+ * Frames of org.apache.catalina.startup.Bootstrap are skipped, as the class
+ * changes between startups. The callstack string is only built when asked
+ * for, e.g. to log it after a failed verification.
+ *
+ * The full callstack with line numbers is taken with getStackTrace(). A 
+ * StackWalker resolves line numbers frame by frame and is slower for a full
+ * walk. It is used where only the first frames are needed, to find the 
+ * calling class.
+ */
+final class CallstackFingerprint {
+
+	private static final String IGNORED_CLASS= "org.apache.catalina.startup.Bootstrap";
+
+	// Reflection frames identify a caller using reflection, keep them
+	private static final StackWalker WALKER= StackWalker.getInstance(StackWalker.Option.SHOW_REFLECT_FRAMES);
+
+	private final List<StackTraceElement> frames= new ArrayList<>();
+	private final byte[] buf= new byte[256];
+	private int len= 0;
+	private final String hash;
+
+	/*
+	 * Fingerprint the callstack of the caller, starting with the frame of 
+	 * the method creating the fingerprint.
+	 */
+	CallstackFingerprint() throws Exception {
+		MessageDigest md= MessageDigest.getInstance("SHA-256");
+		StackTraceElement[] stack= Thread.currentThread().getStackTrace();
+		// [0] getStackTrace, [1] this constructor
+		for (int i= 2; i < stack.length; i++) {
+			StackTraceElement f= stack[i];
+			if (IGNORED_CLASS.equals(f.getClassName())) {
+				continue;
+			}
+			if (!frames.isEmpty()) {
+				put(md, ", ");
+			}
+			put(md, f.getClassName());
+			put(md, ".");
+			put(md, f.getMethodName());
+			put(md, ":");
+			put(md, f.getLineNumber());
+			frames.add(f);
+		}
+		flush(md);
+		hash= FileHasher.toHex(md.digest());
+	}
+
+	String getHash() {
+		return hash;
+	}
+
+	int getDepth() {
+		return frames.size();
+	}
+
+	/*
+	 * The callstack as string, in the format which is hashed
+	 */
+	String getCallstack() {
+		StringBuilder sb= new StringBuilder();
+		for (StackTraceElement f : frames) {
+			if (sb.length() != 0) {
+				sb.append(", ");
+			}
+			sb.append(f.getClassName()).append('.').append(f.getMethodName()).append(':').append(f.getLineNumber());
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Name of the class calling the method which calls callerClass()
+	 */
+	static String callerClass() {
+		return WALKER.walk(s -> s.skip(2).findFirst()).map(StackWalker.StackFrame::getClassName).orElse("");
+	}
+
+	/*
+	 * Add a string as UTF-8. Class and method names are ASCII as a rule,
+	 * these are copied char by char into the buffer.
+	 */
+	private void put(MessageDigest md, String s) {
+		int n= s.length();
+		for (int i= 0; i < n; i++) {
+			char c= s.charAt(i);
+			if (c >= 0x80) {
+				flush(md);
+				md.update(s.substring(i).getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			if (len == buf.length) {
+				flush(md);
+			}
+			buf[len++]= (byte)c;
+		}
+	}
+
+	private void put(MessageDigest md, int v) {
+		if (len + 11 > buf.length) {
+			flush(md);
+		}
+		if (v < 0) {
+			buf[len++]= '-';
+			v= -v;	// line numbers are -1 or -2 if not available
+		}
+		int start= len;
+		do {
+			buf[len++]= (byte)('0' + v % 10);
+			v/= 10;
+		} while (v > 0);
+		for (int i= start, j= len - 1; i < j; i++, j--) {
+			byte b= buf[i];
+			buf[i]= buf[j];
+			buf[j]= b;
+		}
+	}
+
+	private void flush(MessageDigest md) {
+		md.update(buf, 0, len);
+		len= 0;
+	}
+}
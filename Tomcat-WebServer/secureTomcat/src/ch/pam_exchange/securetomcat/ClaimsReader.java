@@ -0,0 +1,505 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader for the claims of a message token.
+ *
+ * Reads the JSON object of the decrypted payload in one pass and keeps only
+ * the claims used: nbf, exp, iat, jti and userData. Other members are
+ * validated and skipped, no map is built.
+ *
+ * Input which is not valid JSON, or with one of the claims used more than
+ * once, fails with InvalidClaimsException. A claim of the wrong type, e.g.
+ * a fraction for a time or a number for jti, fails with ClaimTypeException
+ * once the rest of the input is found valid. A claim which is missing or 
+ * null is returned as null.
+ */
+final class ClaimsReader {
+
+	private static final int MAX_DEPTH= 32;
+
+	private static final byte[] NBF= "nbf".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] EXP= "exp".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] IAT= "iat".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] JTI= "jti".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] USER_DATA= "userData".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[][] CLAIMS= { NBF, EXP, IAT, JTI, USER_DATA };
+	private static final String[] CLAIM_NAMES= { "nbf", "exp", "iat", "jti", "userData" };
+
+	public static class InvalidClaimsException extends Exception {
+		private static final long serialVersionUID= 1L;
+
+		InvalidClaimsException(String message, int position) {
+			super(message+" at position "+position);
+		}
+	}
+
+	public static class ClaimTypeException extends Exception {
+		private static final long serialVersionUID= 1L;
+
+		ClaimTypeException(String claim, String expected) {
+			super("Claim '"+claim+"' is not a "+expected);
+		}
+	}
+
+	private final byte[] b;
+	private final int end;
+	private int pos;
+	private int seen;		// bit per claim read
+	private ClaimTypeException typeError;		// first claim with a wrong type
+
+	private Long nbf;
+	private Long exp;
+	private Long iat;
+	private String jti;
+	private String userData;
+
+	private ClaimsReader(byte[] b) {
+		this.b= b;
+		this.end= b.length;
+	}
+
+	/*
+	 * Read the claims from the UTF-8 bytes of a JSON object
+	 */
+	static ClaimsReader read(byte[] json) throws InvalidClaimsException, ClaimTypeException {
+		ClaimsReader r= new ClaimsReader(json);
+		r.readClaims();
+		if (r.typeError != null) {
+			throw r.typeError;
+		}
+		return r;
+	}
+
+	Long getNbf() {
+		return nbf;
+	}
+
+	Long getExp() {
+		return exp;
+	}
+
+	Long getIat() {
+		return iat;
+	}
+
+	String getJti() {
+		return jti;
+	}
+
+	String getUserData() {
+		return userData;
+	}
+
+	private void readClaims() throws InvalidClaimsException {
+		skipWhitespace();
+		if (pos < end && b[pos] != '{') {
+			// valid JSON, but not an object
+			skipValue(0);
+			skipWhitespace();
+			if (pos != end) {
+				throw invalid("Unexpected data after value");
+			}
+			typeError= new ClaimTypeException("(root)", "object");
+			return;
+		}
+		expect('{');
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+		}
+		else {
+			for (;;) {
+				skipWhitespace();
+				int claim= readKey();
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+				if (claim < 0) {
+					skipValue(1);
+				}
+				else {
+					if ((seen & (1 << claim)) != 0) {
+						throw invalid("Duplicate claim '"+CLAIM_NAMES[claim]+"'");
+					}
+					seen|= 1 << claim;
+					readClaim(claim);
+				}
+				skipWhitespace();
+				byte c= next();
+				if (c == '}') {
+					break;
+				}
+				if (c != ',') {
+					throw invalid("Expected ',' or '}'");
+				}
+			}
+		}
+		skipWhitespace();
+		if (pos != end) {
+			throw invalid("Unexpected data after object");
+		}
+	}
+
+	private void readClaim(int claim) throws InvalidClaimsException {
+		String name= CLAIM_NAMES[claim];
+		if (claim <= 2) {
+			Long v= readLongOrNull(name);
+			if (claim == 0) {
+				nbf= v;
+			} else if (claim == 1) {
+				exp= v;
+			} else {
+				iat= v;
+			}
+			return;
+		}
+		byte c= peek();
+		String v;
+		if (c == '"') {
+			v= readString();
+		}
+		else if (c == 'n') {
+			expectLiteral("null");
+			v= null;
+		}
+		else {
+			skipValue(1);
+			typeMismatch(name, "string");
+			v= null;
+		}
+		if (claim == 3) {
+			jti= v;
+		} else {
+			userData= v;
+		}
+	}
+
+	/*
+	 * Read the key of a member. Returns the index of the claim, or -1 for
+	 * other keys. Keys without escapes are compared without decoding.
+	 */
+	private int readKey() throws InvalidClaimsException {
+		if (peek() != '"') {
+			throw invalid("Expected string");
+		}
+		int start= pos + 1;
+		int stop= scanString();
+		if (stop >= 0) {
+			for (int i= 0; i < CLAIMS.length; i++) {
+				if (equals(CLAIMS[i], start, stop)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		pos= start - 1;
+		String key= readString();
+		for (int i= 0; i < CLAIM_NAMES.length; i++) {
+			if (CLAIM_NAMES[i].equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean equals(byte[] name, int start, int stop) {
+		if (stop - start != name.length) {
+			return false;
+		}
+		for (int i= 0; i < name.length; i++) {
+			if (b[start + i] != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Skip a string at pos. Returns the position of the closing quote if the
+	 * string has no escapes, -1 otherwise. pos is after the string.
+	 */
+	private int scanString() throws InvalidClaimsException {
+		pos++;
+		boolean escaped= false;
+		while (pos < end) {
+			byte c= b[pos];
+			if (c == '"') {
+				pos++;
+				return escaped ? -1 : pos - 1;
+			}
+			if ((c & 0xff) < 0x20) {
+				throw invalid("Control character in string");
+			}
+			if (c == '\\') {
+				escaped= true;
+				pos++;
+				if (pos >= end) {
+					break;
+				}
+				byte e= b[pos];
+				if (e == 'u') {
+					for (int i= 0; i < 4; i++) {
+						pos++;
+						if (pos >= end || Character.digit(b[pos], 16) < 0) {
+							throw invalid("Invalid unicode escape");
+						}
+					}
+				}
+				else if ("\"\\/bfnrt".indexOf(e) < 0) {
+					throw invalid("Invalid escape");
+				}
+			}
+			pos++;
+		}
+		throw invalid("Unterminated string");
+	}
+
+	private String readString() throws InvalidClaimsException {
+		int start= pos + 1;
+		int stop= scanString();
+		if (stop >= 0) {
+			return new String(b, start, stop - start, StandardCharsets.UTF_8);
+		}
+		// with escapes, the string was validated by scanString
+		StringBuilder sb= new StringBuilder(pos - start);
+		int i= start;
+		int run= start;
+		while (b[i] != '"') {
+			if (b[i] != '\\') {
+				i++;
+				continue;
+			}
+			sb.append(new String(b, run, i - run, StandardCharsets.UTF_8));
+			byte e= b[i + 1];
+			switch (e) {
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'u':
+					sb.append((char)Integer.parseInt(new String(b, i + 2, 4, StandardCharsets.US_ASCII), 16));
+					i+= 4;
+					break;
+				default: sb.append((char)e); break;
+			}
+			i+= 2;
+			run= i;
+		}
+		sb.append(new String(b, run, i - run, StandardCharsets.UTF_8));
+		return sb.toString();
+	}
+
+	/*
+	 * Read an integer claim. Fractions and exponents are numbers, but not 
+	 * integers, and are rejected as the wrong type.
+	 */
+	private Long readLongOrNull(String name) throws InvalidClaimsException {
+		byte c= peek();
+		if (c == 'n') {
+			expectLiteral("null");
+			return null;
+		}
+		if (c != '-' && (c < '0' || c > '9')) {
+			skipValue(1);
+			typeMismatch(name, "number");
+			return null;
+		}
+		int start= pos;
+		boolean integer= scanNumber();
+		if (!integer) {
+			typeMismatch(name, "integer");
+			return null;
+		}
+		boolean negative= b[start] == '-';
+		long v= 0;
+		for (int i= negative ? start + 1 : start; i < pos; i++) {
+			int d= b[i] - '0';
+			if (v > (Long.MAX_VALUE - d) / 10) {
+				typeMismatch(name, "long");
+				return null;
+			}
+			v= v * 10 + d;
+		}
+		return negative ? -v : v;
+	}
+
+	/*
+	 * Skip a number. Returns true if it is an integer.
+	 */
+	private boolean scanNumber() throws InvalidClaimsException {
+		boolean integer= true;
+		if (peek() == '-') {
+			pos++;
+		}
+		if (peek() == '0') {
+			pos++;
+		}
+		else if (!digits()) {
+			throw invalid("Invalid number");
+		}
+		if (pos < end && b[pos] == '.') {
+			pos++;
+			integer= false;
+			if (!digits()) {
+				throw invalid("Invalid number");
+			}
+		}
+		if (pos < end && (b[pos] == 'e' || b[pos] == 'E')) {
+			pos++;
+			integer= false;
+			if (pos < end && (b[pos] == '+' || b[pos] == '-')) {
+				pos++;
+			}
+			if (!digits()) {
+				throw invalid("Invalid number");
+			}
+		}
+		return integer;
+	}
+
+	private boolean digits() {
+		int start= pos;
+		while (pos < end && b[pos] >= '0' && b[pos] <= '9') {
+			pos++;
+		}
+		return pos > start;
+	}
+
+	private void typeMismatch(String claim, String expected) {
+		if (typeError == null) {
+			typeError= new ClaimTypeException(claim, expected);
+		}
+	}
+
+	private void skipValue(int depth) throws InvalidClaimsException {
+		if (depth > MAX_DEPTH) {
+			throw invalid("Nesting too deep");
+		}
+		byte c= peek();
+		switch (c) {
+			case '"':
+				scanString();
+				return;
+			case '{':
+				pos++;
+				skipWhitespace();
+				if (peek() == '}') {
+					pos++;
+					return;
+				}
+				for (;;) {
+					skipWhitespace();
+					if (peek() != '"') {
+						throw invalid("Expected string");
+					}
+					scanString();
+					skipWhitespace();
+					expect(':');
+					skipWhitespace();
+					skipValue(depth + 1);
+					skipWhitespace();
+					byte o= next();
+					if (o == '}') {
+						return;
+					}
+					if (o != ',') {
+						throw invalid("Expected ',' or '}'");
+					}
+				}
+			case '[':
+				pos++;
+				skipWhitespace();
+				if (peek() == ']') {
+					pos++;
+					return;
+				}
+				for (;;) {
+					skipWhitespace();
+					skipValue(depth + 1);
+					skipWhitespace();
+					byte a= next();
+					if (a == ']') {
+						return;
+					}
+					if (a != ',') {
+						throw invalid("Expected ',' or ']'");
+					}
+				}
+			case 't':
+				expectLiteral("true");
+				return;
+			case 'f':
+				expectLiteral("false");
+				return;
+			case 'n':
+				expectLiteral("null");
+				return;
+			default:
+				scanNumber();
+		}
+	}
+
+	private void expectLiteral(String literal) throws InvalidClaimsException {
+		for (int i= 0; i < literal.length(); i++) {
+			if (next() != literal.charAt(i)) {
+				throw invalid("Invalid literal");
+			}
+		}
+	}
+
+	private void expect(char c) throws InvalidClaimsException {
+		if (next() != c) {
+			throw invalid("Expected '"+c+"'");
+		}
+	}
+
+	private byte peek() throws InvalidClaimsException {
+		if (pos >= end) {
+			throw invalid("Unexpected end of data");
+		}
+		return b[pos];
+	}
+
+	private byte next() throws InvalidClaimsException {
+		byte c= peek();
+		pos++;
+		return c;
+	}
+
+	private void skipWhitespace() {
+		while (pos < end && (b[pos] == ' ' || b[pos] == '\t' || b[pos] == '\n' || b[pos] == '\r')) {
+			pos++;
+		}
+	}
+
+	private InvalidClaimsException invalid(String message) {
+		return new InvalidClaimsException(message, pos);
+	}
+}
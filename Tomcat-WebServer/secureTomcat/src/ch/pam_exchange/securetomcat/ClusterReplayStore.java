@@ -0,0 +1,552 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.catalina.startup.CatalinaProperties;
+import org.apache.catalina.tribes.ByteMessage;
+import org.apache.catalina.tribes.Channel;
+import org.apache.catalina.tribes.ChannelException;
+import org.apache.catalina.tribes.ChannelListener;
+import org.apache.catalina.tribes.ErrorHandler;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.MembershipListener;
+import org.apache.catalina.tribes.UniqueId;
+import org.apache.catalina.tribes.group.GroupChannel;
+import org.apache.catalina.tribes.group.interceptors.EncryptInterceptor;
+import org.apache.catalina.tribes.group.interceptors.MessageDispatchInterceptor;
+import org.apache.catalina.tribes.group.interceptors.TcpFailureDetector;
+import org.apache.catalina.tribes.membership.McastService;
+import org.apache.catalina.tribes.membership.StaticMember;
+import org.apache.catalina.tribes.membership.StaticMembershipService;
+import org.apache.catalina.tribes.transport.ReceiverBase;
+
+/**
+ * Replay store shared by the nodes of a cluster.
+ *
+ * Each node checks and adds token ids in a local TimingWheelReplayStore. 
+ * New ids are sent to the other nodes over a Tomcat Tribes channel, in 
+ * batches sent every flush interval or when a batch is full. A node adds
+ * the ids received to its local store. A token replayed on another node
+ * is detected once the batch with its id has arrived, so the replay window
+ * across nodes is about the flush interval plus the network latency.
+ *
+ * A batch not sent to a member is sent again to that member with the next
+ * flush, until the deadlines of its ids have passed or the member is gone.
+ * A member joining, also a node restarted, is sent all ids kept by this
+ * node. Ids flushed while there are no members are not kept, a member
+ * joining later gets them this way. When MAX_PENDING ids wait to be sent,
+ * new tokens are rejected, as they could be replayed on another node.
+ *
+ * Batches are sent as byte messages, nothing received is deserialized as
+ * Java objects. The channel is encrypted with a key, the store does not 
+ * start without one, as any host able to reach the port could add ids. 
+ * An id received is kept at most the time window, and a batch with more 
+ * ids than a node sends is dropped.
+ *
+ * The members are either listed (static membership), or found by 
+ * multicast. The channel is separate from a Tomcat session cluster.
+ *
+ * Properties
+ * - pam.jwt.replay.cluster.host       Local address, default "auto"
+ * - pam.jwt.replay.cluster.port       Local port, default 4100
+ * - pam.jwt.replay.cluster.members    Other nodes as host:port,host:port. Multicast if not set
+ * - pam.jwt.replay.cluster.multicast  Multicast address:port, default 228.0.0.5:45565
+ * - pam.jwt.replay.cluster.domain     Cluster domain, default "securetomcat-replay"
+ * - pam.jwt.replay.cluster.flush      Flush interval (in ms), default 50
+ * - pam.jwt.replay.cluster.key        AES key (hex) for the channel, required
+ *
+ * The channel is stopped when the store is closed, with the web 
+ * application. Until then the port stays bound.
+ */
+public class ClusterReplayStore implements ReplayStore {
+
+	static final String PROPERTY_HOST= "pam.jwt.replay.cluster.host";
+	static final String PROPERTY_PORT= "pam.jwt.replay.cluster.port";
+	static final String PROPERTY_MEMBERS= "pam.jwt.replay.cluster.members";
+	static final String PROPERTY_MULTICAST= "pam.jwt.replay.cluster.multicast";
+	static final String PROPERTY_DOMAIN= "pam.jwt.replay.cluster.domain";
+	static final String PROPERTY_FLUSH= "pam.jwt.replay.cluster.flush";
+	static final String PROPERTY_KEY= "pam.jwt.replay.cluster.key";
+	private static final String[] PROPERTIES= {PROPERTY_HOST, PROPERTY_PORT, PROPERTY_MEMBERS, PROPERTY_MULTICAST, PROPERTY_DOMAIN, PROPERTY_FLUSH, PROPERTY_KEY};
+
+	private static final String DEFAULT_HOST= "auto";
+	private static final int DEFAULT_PORT= 4100;
+	private static final String DEFAULT_MULTICAST= "228.0.0.5:45565";
+	private static final String DEFAULT_DOMAIN= "securetomcat-replay";
+	private static final long DEFAULT_FLUSH= 50;
+	private static final int BATCH_SIZE= 1000;			// Max ids in one message
+	private static final int MAX_PENDING= 100000;		// Max ids waiting to be sent, new tokens are rejected
+	private static final byte BATCH_VERSION= 1;
+	private static final int SEND_OPTIONS= Channel.SEND_OPTIONS_BYTE_MESSAGE | Channel.SEND_OPTIONS_ASYNCHRONOUS;
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat";
+	private final Logger LOGGER= Logger.getLogger(LOGGER_NAME);
+
+	private final TimingWheelReplayStore local;
+	private final long timeWindow;
+	private final GroupChannel channel= new GroupChannel();
+	private final Queue<Pending> pending= new ConcurrentLinkedQueue<>();
+	private final Queue<Batch> retries= new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pendingCount= new AtomicInteger();
+	private final AtomicBoolean flushing= new AtomicBoolean(false);
+	private final ScheduledExecutorService flusher;
+	private final AtomicLong sent= new AtomicLong();
+	private final AtomicLong received= new AtomicLong();
+	private final AtomicLong rejected= new AtomicLong();
+	private final AtomicLong failed= new AtomicLong();
+	private long rejectedReported;
+	private volatile boolean closed;
+
+	private static final class Pending {
+		final String id;
+		final long deadline;
+
+		Pending(String id, long deadline) {
+			this.id= id;
+			this.deadline= deadline;
+		}
+	}
+
+	/*
+	 * Ids sent to some members, sent again to the members which failed
+	 */
+	private final class Batch implements ErrorHandler {
+		final List<Pending> ids;
+		final Member[] to;
+		private final AtomicBoolean done= new AtomicBoolean(false);
+
+		Batch(List<Pending> ids, Member[] to) {
+			this.ids= ids;
+			this.to= to;
+		}
+
+		@Override
+		public void handleCompletion(UniqueId id) {
+			if (done.compareAndSet(false, true)) {
+				sent.addAndGet(ids.size());
+			}
+		}
+
+		@Override
+		public void handleError(ChannelException x, UniqueId id) {
+			if (!done.compareAndSet(false, true)) {
+				return;
+			}
+			ChannelException.FaultyMember[] faulty= x.getFaultyMembers();
+			Member[] again= to;
+			if (faulty.length > 0) {
+				again= new Member[faulty.length];
+				for (int i= 0; i < faulty.length; i++) {
+					again[i]= faulty[i].getMember();
+				}
+			}
+			failed.addAndGet(ids.size());
+			pendingCount.addAndGet(ids.size());
+			retries.add(new Batch(ids, again));
+			LOGGER.fine("Replay batch not sent to "+again.length+" member(s), sent again: "+x.getMessage());
+		}
+	}
+
+	/*
+	 * Store configured from Catalina properties
+	 */
+	public ClusterReplayStore(long timeWindow) throws Exception {
+		this(timeWindow, catalinaProperties());
+	}
+
+	/*
+	 * Store configured from the properties given. Used to run several
+	 * nodes in one JVM.
+	 */
+	public ClusterReplayStore(long timeWindow, Properties config) throws Exception {
+		String key= config.getProperty(PROPERTY_KEY);
+		if (key == null || key.isBlank()) {
+			LOGGER.severe("Property '"+PROPERTY_KEY+"' not set, the replay cluster is not started");
+			throw new IllegalStateException("Property '"+PROPERTY_KEY+"' not set");
+		}
+		this.local= new TimingWheelReplayStore(timeWindow);
+		this.timeWindow= timeWindow;
+
+		String host= config.getProperty(PROPERTY_HOST, DEFAULT_HOST).trim();
+		int port= Integer.parseInt(config.getProperty(PROPERTY_PORT, String.valueOf(DEFAULT_PORT)).trim());
+		String members= config.getProperty(PROPERTY_MEMBERS);
+		String domain= config.getProperty(PROPERTY_DOMAIN, DEFAULT_DOMAIN).trim();
+		long flush= Long.parseLong(config.getProperty(PROPERTY_FLUSH, String.valueOf(DEFAULT_FLUSH)).trim());
+
+		ReceiverBase receiver= (ReceiverBase)channel.getChannelReceiver();
+		receiver.setAddress(host);
+		receiver.setPort(port);
+		if (members != null && !members.isBlank()) {
+			// Static members. Unique ids are derived from host:port, the same on all nodes
+			receiver.setAutoBind(0);
+			String localHost= "auto".equals(host) ? InetAddress.getLocalHost().getHostAddress() : host;
+			StaticMembershipService membership= new StaticMembershipService();
+			StaticMember self= staticMember(localHost, port, domain);
+			membership.setLocalMember(self);
+			for (String m : members.split(",")) {
+				m= m.trim();
+				int colon= m.lastIndexOf(':');
+				if (m.isEmpty() || colon < 0) {
+					continue;
+				}
+				String mHost= m.substring(0, colon);
+				int mPort= Integer.parseInt(m.substring(colon + 1));
+				if (mPort == port && (mHost.equals(host) || mHost.equals(localHost))) {
+					continue;	// self
+				}
+				membership.addStaticMember(staticMember(mHost, mPort, domain));
+			}
+			channel.setMembershipService(membership);
+			LOGGER.info("Static members= "+members+", local= "+localHost+":"+port);
+		} else {
+			String multicast= config.getProperty(PROPERTY_MULTICAST, DEFAULT_MULTICAST).trim();
+			int colon= multicast.lastIndexOf(':');
+			McastService membership= new McastService();
+			membership.setAddress(multicast.substring(0, colon));
+			membership.setPort(Integer.parseInt(multicast.substring(colon + 1)));
+			membership.setDomain(domain);
+			channel.setMembershipService(membership);
+			LOGGER.info("Multicast membership= "+multicast+", local port= "+port);
+		}
+
+		EncryptInterceptor encrypt= new EncryptInterceptor();
+		encrypt.setEncryptionKey(key.trim());
+		channel.addInterceptor(encrypt);
+		channel.addInterceptor(new TcpFailureDetector());
+		channel.addInterceptor(new MessageDispatchInterceptor());
+		channel.addChannelListener(new Listener());
+		channel.addMembershipListener(new Members());
+		channel.setName("securetomcat-replay");
+		channel.setJmxEnabled(false);
+		flusher= Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t= new Thread(r, "securetomcat-replay");
+			t.setDaemon(true);
+			return t;
+		});
+		channel.setUtilityExecutor(flusher);
+		try {
+			channel.start(Channel.DEFAULT);
+		}
+		catch (ChannelException | RuntimeException e) {
+			try {
+				channel.stop(Channel.DEFAULT);
+			}
+			catch (ChannelException | RuntimeException stop) {
+				e.addSuppressed(stop);
+			}
+			flusher.shutdownNow();
+			throw e;
+		}
+		flusher.scheduleWithFixedDelay(this::flush, flush, flush, TimeUnit.MILLISECONDS);
+		LOGGER.fine("flush= "+flush);
+	}
+
+	@Override
+	public boolean add(String id, long deadline) {
+		if (pendingCount.get() >= MAX_PENDING) {
+			// The id would not be sent, the token could be replayed on another node
+			rejected.incrementAndGet();
+			throw new FullException("Replay ids waiting to be sent - "+MAX_PENDING);
+		}
+		if (!local.add(id, deadline)) {
+			return false;
+		}
+		int count= pendingCount.incrementAndGet();
+		pending.add(new Pending(id, deadline));
+		if (count % BATCH_SIZE == 0) {
+			// A full batch, do not wait for the flush interval
+			flusher.execute(this::flush);
+		}
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return local.size();
+	}
+
+	@Override
+	public int capacity() {
+		return local.capacity();
+	}
+
+	public int getMemberCount() {
+		return channel.getMembers().length;
+	}
+
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/*
+	 * Send the pending ids and stop the channel, the port is released
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed= true;
+		flusher.shutdown();
+		flush();
+		try {
+			channel.stop(Channel.DEFAULT);
+		}
+		catch (ChannelException e) {
+			LOGGER.log(Level.WARNING, e.getMessage(), e);
+		}
+		LOGGER.info("Replay cluster stopped, sent= "+sent.get()+", received= "+received.get());
+	}
+
+	/*
+	 * Send the batches which failed, then the pending ids in batches of 
+	 * BATCH_SIZE. Without members the pending ids are discarded, they are
+	 * sent to a member when it joins.
+	 */
+	private void flush() {
+		if (!flushing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			List<Member> members= Arrays.asList(channel.getMembers());
+			long now= System.currentTimeMillis() / 1000;
+			// Batches failing again while sending are sent with the next flush
+			for (int n= retries.size(); n > 0; n--) {
+				Batch b= retries.poll();
+				if (b == null) {
+					break;
+				}
+				pendingCount.addAndGet(-b.ids.size());
+				List<Pending> live= new ArrayList<>(b.ids.size());
+				for (Pending p : b.ids) {
+					if (p.deadline >= now) {
+						live.add(p);
+					}
+				}
+				List<Member> to= new ArrayList<>(b.to.length);
+				for (Member m : b.to) {
+					if (members.contains(m)) {
+						to.add(m);
+					}
+				}
+				if (!live.isEmpty() && !to.isEmpty()) {
+					send(live, to.toArray(new Member[0]));
+				}
+			}
+			while (pending.peek() != null) {
+				List<Pending> batch= new ArrayList<>(BATCH_SIZE);
+				Pending p;
+				while (batch.size() < BATCH_SIZE && (p= pending.poll()) != null) {
+					batch.add(p);
+				}
+				pendingCount.addAndGet(-batch.size());
+				if (!batch.isEmpty() && !members.isEmpty()) {
+					send(batch, members.toArray(new Member[0]));
+				}
+			}
+		}
+		finally {
+			long r= rejected.get();
+			if (r != rejectedReported) {
+				LOGGER.warning("Tokens rejected, too many replay ids waiting to be sent - "+(r - rejectedReported));
+				rejectedReported= r;
+			}
+			flushing.set(false);
+		}
+	}
+
+	/*
+	 * Send ids to members. A batch failing, also later when it is sent 
+	 * asynchronously, is added to the retries.
+	 */
+	private void send(List<Pending> ids, Member[] to) {
+		Batch b= new Batch(ids, to);
+		try {
+			channel.send(to, new ByteMessage(encode(ids)), SEND_OPTIONS, b);
+		}
+		catch (ChannelException e) {
+			b.handleError(e, null);
+		}
+		catch (IOException e) {
+			LOGGER.warning("Replay batch not encoded: "+e.getMessage());
+		}
+	}
+
+	/*
+	 * Send all ids kept by this node to a member which joined
+	 */
+	private void sendAll(Member member) {
+		long now= System.currentTimeMillis() / 1000;
+		Member[] to= {member};
+		List<Pending> batch= new ArrayList<>(BATCH_SIZE);
+		int count= 0;
+		for (Map.Entry<String,Long> e : local.entries()) {
+			if (e.getValue() < now) {
+				continue;
+			}
+			batch.add(new Pending(e.getKey(), e.getValue()));
+			if (batch.size() == BATCH_SIZE) {
+				send(batch, to);
+				count+= batch.size();
+				batch= new ArrayList<>(BATCH_SIZE);
+			}
+		}
+		if (!batch.isEmpty()) {
+			send(batch, to);
+			count+= batch.size();
+		}
+		LOGGER.info("Replay member "+member.getName()+" joined, ids sent= "+count);
+	}
+
+	private static byte[] encode(List<Pending> batch) throws IOException {
+		ByteArrayOutputStream bytes= new ByteArrayOutputStream(batch.size() * 40);
+		DataOutputStream out= new DataOutputStream(bytes);
+		out.writeByte(BATCH_VERSION);
+		out.writeInt(batch.size());
+		for (Pending p : batch) {
+			out.writeLong(p.deadline);
+			out.writeUTF(p.id);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Ids received from other nodes
+	 */
+	private final class Listener implements ChannelListener {
+		@Override
+		public boolean accept(Serializable msg, Member sender) {
+			return msg instanceof ByteMessage;
+		}
+
+		@Override
+		public void messageReceived(Serializable msg, Member sender) {
+			try (DataInputStream in= new DataInputStream(new ByteArrayInputStream(((ByteMessage)msg).getMessage()))) {
+				if (in.readByte() != BATCH_VERSION) {
+					LOGGER.warning("Unknown replay batch from "+sender.getName());
+					return;
+				}
+				int count= in.readInt();
+				if (count < 0 || count > BATCH_SIZE) {
+					LOGGER.warning("Replay batch from "+sender.getName()+" dropped, ids= "+count);
+					return;
+				}
+				// A node keeps an id at most the time window, also when the sender asks for longer
+				long maxDeadline= System.currentTimeMillis() / 1000 + timeWindow;
+				for (int i= 0; i < count; i++) {
+					long deadline= in.readLong();
+					String id= in.readUTF();
+					local.add(id, Math.min(deadline, maxDeadline));
+				}
+				received.addAndGet(count);
+			}
+			catch (IOException e) {
+				LOGGER.warning("Invalid replay batch from "+sender.getName()+": "+e.getMessage());
+			}
+			catch (ReplayStore.FullException e) {
+				LOGGER.warning("Replay store full, ids from "+sender.getName()+" dropped");
+			}
+		}
+	}
+
+	/*
+	 * A member joining gets all ids, it may have missed batches
+	 */
+	private final class Members implements MembershipListener {
+		@Override
+		public void memberAdded(Member member) {
+			try {
+				flusher.execute(() -> sendAll(member));
+			}
+			catch (RejectedExecutionException e) {
+				// Store closed
+			}
+		}
+
+		@Override
+		public void memberDisappeared(Member member) {
+			LOGGER.info("Replay member "+member.getName()+" disappeared");
+		}
+	}
+
+	private static StaticMember staticMember(String host, int port, String domain) throws Exception {
+		byte[] hash= MessageDigest.getInstance("SHA-256").digest((host+":"+port).getBytes(StandardCharsets.UTF_8));
+		byte[] uniqueId= new byte[16];
+		System.arraycopy(hash, 0, uniqueId, 0, uniqueId.length);
+		StaticMember member= new StaticMember(host, port, 0, uniqueId);
+		member.setDomain(domain);
+		return member;
+	}
+
+	private static Properties catalinaProperties() {
+		Properties config= new Properties();
+		for (String name : PROPERTIES) {
+			String value= CatalinaProperties.getProperty(name);
+			if (value != null) {
+				config.setProperty(name, value);
+			}
+		}
+		return config;
+	}
+}
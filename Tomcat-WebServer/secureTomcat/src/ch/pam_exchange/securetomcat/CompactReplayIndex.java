@@ -0,0 +1,239 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.security.SecureRandom;
+import java.util.logging.Logger;
+
+/**
+ * Replay store with a fixed memory footprint.
+ *
+ * A token id is reduced to a 64 bit fingerprint, which is stored with its
+ * deadline in primitive arrays using open addressing (linear probing). No
+ * objects are allocated per id. The table is split into segments, each with
+ * its own lock, and sized from a memory limit when created. Expired entries
+ * are removed when a segment runs full. If there is still no room, the id is
+ * rejected with a {@link ReplayStore.FullException}.
+ *
+ * Two different ids with the same fingerprint are seen as a replay. With 64
+ * bit fingerprints this is very unlikely and rejects a valid token rather
+ * than accepting a replayed one.
+ */
+public class CompactReplayIndex implements ReplayStore {
+
+	private static final int SEGMENTS= 16;			// power of two
+	private static final int SLOT_BYTES= 8 + 4;		// fingerprint + deadline
+	private static final int MIN_SEGMENT_SLOTS= 64;
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat";
+	private final Logger LOGGER= Logger.getLogger(LOGGER_NAME);
+
+	private final long seed;
+	private final long base;		// deadlines are stored as seconds after base
+	private final Segment[] segments= new Segment[SEGMENTS];
+
+	private static final class Segment {
+		final long[] fps;
+		final int[] deadlines;
+		final int mask;
+		final int maxUsed;
+		int used= 0;
+		int lastPurge= Integer.MIN_VALUE;
+
+		Segment(int slots) {
+			fps= new long[slots];
+			deadlines= new int[slots];
+			mask= slots - 1;
+			maxUsed= slots / 4 * 3;
+		}
+	}
+
+	public CompactReplayIndex(long maxBytes) {
+		this(maxBytes, new SecureRandom().nextLong());
+	}
+
+	public CompactReplayIndex(long maxBytes, long seed) {
+		this.seed= seed;
+		this.base= System.currentTimeMillis() / 1000 - 1;
+		long slots= Math.max(MIN_SEGMENT_SLOTS, maxBytes / SLOT_BYTES / SEGMENTS);
+		int segmentSlots= (int)Long.highestOneBit(Math.min(slots, 1 << 30));
+		for (int i= 0; i < SEGMENTS; i++) {
+			segments[i]= new Segment(segmentSlots);
+		}
+		LOGGER.fine("maxBytes= "+maxBytes+", capacity= "+capacity()+", memoryBytes= "+memoryBytes());
+	}
+
+	@Override
+	public boolean add(String id, long deadline) {
+		return add(fingerprint(id), deadline);
+	}
+
+	public boolean add(long fp, long deadline) {
+		int now= toRelative(System.currentTimeMillis() / 1000);
+		int d= Math.max(now, toRelative(deadline));
+		Segment s= segments[(int)(fp >>> 60) & (SEGMENTS - 1)];
+		synchronized (s) {
+			int slot= find(s, fp);
+			if (s.fps[slot] == fp) {
+				if (s.deadlines[slot] >= now) {
+					return false; // replay, already exist
+				}
+				s.deadlines[slot]= d;
+				return true;
+			}
+			if (s.used >= s.maxUsed) {
+				if (s.lastPurge != now) {
+					purge(s, now);
+				}
+				if (s.used >= s.maxUsed) {
+					LOGGER.severe("Replay store full, used= "+size()+", capacity= "+capacity());
+					throw new FullException("Replay store full");
+				}
+				slot= find(s, fp);
+			}
+			s.fps[slot]= fp;
+			s.deadlines[slot]= d;
+			s.used++;
+			return true;
+		}
+	}
+
+	public boolean contains(String id) {
+		return contains(fingerprint(id));
+	}
+
+	public boolean contains(long fp) {
+		int now= toRelative(System.currentTimeMillis() / 1000);
+		Segment s= segments[(int)(fp >>> 60) & (SEGMENTS - 1)];
+		synchronized (s) {
+			int slot= find(s, fp);
+			return s.fps[slot] == fp && s.deadlines[slot] >= now;
+		}
+	}
+
+	/*
+	 * Number of occupied slots, including expired entries not yet removed
+	 */
+	@Override
+	public int size() {
+		int n= 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				n+= s.used;
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public int capacity() {
+		return segments[0].maxUsed * SEGMENTS;
+	}
+
+	public long memoryBytes() {
+		return (long)(segments[0].mask + 1) * SEGMENTS * SLOT_BYTES;
+	}
+
+	/*
+	 * Occupancy in percent of capacity
+	 */
+	public int occupancy() {
+		return (int)(100L * size() / capacity());
+	}
+
+	/*
+	 * 64 bit fingerprint of a token id (FNV-1a with a seed, then mixed).
+	 * Zero is reserved for empty slots.
+	 */
+	public long fingerprint(String id) {
+		long h= 0xcbf29ce484222325L ^ seed;
+		for (int i= 0; i < id.length(); i++) {
+			h^= id.charAt(i);
+			h*= 0x100000001b3L;
+		}
+		h^= h >>> 33;
+		h*= 0xff51afd7ed558ccdL;
+		h^= h >>> 33;
+		h*= 0xc4ceb9fe1a85ec53L;
+		h^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+
+	/*
+	 * Slot holding fp, or the empty slot where it belongs
+	 */
+	private static int find(Segment s, long fp) {
+		int slot= (int)fp & s.mask;
+		while (s.fps[slot] != 0 && s.fps[slot] != fp) {
+			slot= (slot + 1) & s.mask;
+		}
+		return slot;
+	}
+
+	/*
+	 * Remove expired entries. Uses backward shift deletion, so no
+	 * tombstones are left in the probe sequences.
+	 */
+	private void purge(Segment s, int now) {
+		int before= s.used;
+		int slot= 0;
+		while (slot <= s.mask) {
+			if (s.fps[slot] != 0 && s.deadlines[slot] < now) {
+				remove(s, slot);
+				// an entry may have been shifted into this slot, check it again
+				continue;
+			}
+			slot++;
+		}
+		s.lastPurge= now;
+		LOGGER.fine("purged= "+(before - s.used)+", used= "+s.used);
+	}
+
+	private static void remove(Segment s, int slot) {
+		int hole= slot;
+		int next= (hole + 1) & s.mask;
+		while (s.fps[next] != 0) {
+			int home= (int)s.fps[next] & s.mask;
+			// move the entry if its home is not between the hole and its position
+			if (((next - home) & s.mask) >= ((next - hole) & s.mask)) {
+				s.fps[hole]= s.fps[next];
+				s.deadlines[hole]= s.deadlines[next];
+				hole= next;
+			}
+			next= (next + 1) & s.mask;
+		}
+		s.fps[hole]= 0;
+		s.deadlines[hole]= 0;
+		s.used--;
+	}
+
+	private int toRelative(long epochSeconds) {
+		long r= epochSeconds - base;
+		if (r > Integer.MAX_VALUE) {
+			return Integer.MAX_VALUE;
+		}
+		return (int)Math.max(r, 0);
+	}
+}
@@ -0,0 +1,127 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SHA-256 of files, hashed in parallel.
+ *
+ * Each file is hashed by a task in a fork-join pool. Files are read
+ * through a direct buffer kept per thread. Files are not memory mapped, a
+ * mapping is only released by the garbage collector and keeps the file
+ * locked on Windows.
+ */
+public class FileHasher {
+
+	private static final int BUFFER_SIZE= 256 * 1024;
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat";
+	private static final Logger LOGGER= Logger.getLogger(LOGGER_NAME);
+
+	private static final ThreadLocal<ByteBuffer> BUFFER= ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+	private final int parallelism;
+
+	public FileHasher(int parallelism) {
+		this.parallelism= Math.max(1, parallelism);
+	}
+
+	/*
+	 * Calculate the sha256 of each file. The result has the same order as
+	 * the list of files. If a file cannot be read its hash is null.
+	 */
+	public String[] sha256Files(List<String> files) {
+		String[] hashes= new String[files.size()];
+		ForkJoinPool pool= new ForkJoinPool(Math.min(parallelism, Math.max(1, files.size())));
+		try {
+			List<Callable<String>> tasks= new ArrayList<>(files.size());
+			for (String f : files) {
+				tasks.add(() -> sha256FileOrNull(f));
+			}
+			List<Future<String>> results= pool.invokeAll(tasks);
+			for (int i= 0; i < hashes.length; i++) {
+				hashes[i]= results.get(i).get();
+			}
+		}
+		catch (Exception e) {
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+		}
+		finally {
+			pool.shutdown();
+		}
+		return hashes;
+	}
+
+	/*
+	 * Calculate the sha256 of a file as hex string
+	 */
+	public static String sha256File(String filename) throws Exception {
+		MessageDigest md= MessageDigest.getInstance("SHA-256");
+		try (FileChannel ch= FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			ByteBuffer buf= BUFFER.get();
+			buf.clear();
+			while (ch.read(buf) != -1) {
+				buf.flip();
+				md.update(buf);
+				buf.clear();
+			}
+		}
+		return toHex(md.digest());
+	}
+
+	/*
+	 * Convert byte array to hex string
+	 */
+	public static String toHex(byte[] bytes) {
+		char[] hex= new char[bytes.length * 2];
+		for (int i= 0; i < bytes.length; i++) {
+			hex[2*i]= Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+			hex[2*i+1]= Character.forDigit(bytes[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+
+	private static String sha256FileOrNull(String filename) {
+		try {
+			return sha256File(filename);
+		}
+		catch (Exception e) {
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+			return null;
+		}
+	}
+}
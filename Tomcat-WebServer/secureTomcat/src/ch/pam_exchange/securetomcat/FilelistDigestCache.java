@@ -0,0 +1,257 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Persistent cache of file digests used when verifying the filelist.
+ *
+ * For each file the size, modification time, change time and file key
+ * (inode) are stored together with the last sha256. A file with unchanged
+ * metadata is not hashed again. A file system without change time or file
+ * key (e.g. NTFS) gives no cache hits, all files are hashed. The cache
+ * file is protected with a HMAC-SHA256 keyed from a PAM secret. A cache
+ * file with an invalid MAC is ignored and all files are hashed.
+ *
+ * The combined hash of the filelist is still calculated and compared with
+ * the expected hash from PAM.
+ */
+public class FilelistDigestCache {
+
+	private static final String HEADER= "# SecureTomcat filelist digest cache v1";
+	private static final String MAC_PREFIX= "mac ";
+	private static final String MAC_ALGORITHM= "HmacSHA256";
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat";
+	private final Logger LOGGER= Logger.getLogger(LOGGER_NAME);
+
+	private final Path cacheFile;
+	private final byte[] macKey;
+	private final Map<String,Entry> entries= new HashMap<>();
+	private boolean dirty= false;
+	private int reused= 0;
+	private int hashed= 0;
+
+	private static final class Entry {
+		final String sha;
+		final String meta;
+
+		Entry(String sha, String meta) {
+			this.sha= sha;
+			this.meta= meta;
+		}
+	}
+
+	public FilelistDigestCache(String cacheName, String macSecret) {
+		this.cacheFile= Paths.get(cacheName);
+		this.macKey= macSecret.getBytes(StandardCharsets.UTF_8);
+		load();
+	}
+
+	/*
+	 * Calculate the sha256 of each file, reusing the cached digest of
+	 * files with unchanged metadata. Files not found in the cache or
+	 * changed are hashed in parallel.
+	 */
+	public String[] sha256Files(List<String> files, FileHasher hasher) {
+		String[] hashes= new String[files.size()];
+		String[] metas= new String[files.size()];
+		List<String> toHash= new ArrayList<>();
+		List<Integer> toHashIndex= new ArrayList<>();
+
+		for (int i= 0; i < files.size(); i++) {
+			String f= files.get(i);
+			metas[i]= metadata(f);
+			Entry e= entries.get(f);
+			if (metas[i] != null && e != null && e.meta.equals(metas[i])) {
+				hashes[i]= e.sha;
+				reused++;
+			}
+			else {
+				toHash.add(f);
+				toHashIndex.add(i);
+			}
+		}
+
+		String[] fresh= hasher.sha256Files(toHash);
+		for (int j= 0; j < fresh.length; j++) {
+			int i= toHashIndex.get(j);
+			hashes[i]= fresh[j];
+			hashed++;
+			if (fresh[j] != null && metas[i] != null) {
+				entries.put(files.get(i), new Entry(fresh[j], metas[i]));
+				dirty= true;
+			}
+		}
+		// forget files no longer in the filelist
+		if (entries.keySet().retainAll(new HashSet<>(files))) {
+			dirty= true;
+		}
+		if (reused == 0 && hashed > 0 && !Arrays.stream(metas).anyMatch(m -> m != null)) {
+			LOGGER.info("Filelist digest cache not used, no change time or file key on this file system");
+		}
+		LOGGER.fine("reused= "+reused+", hashed= "+hashed);
+		return hashes;
+	}
+
+	/*
+	 * Write the cache file if digests have changed. Should only be called
+	 * after the filelist has been verified.
+	 */
+	public void save() {
+		if (!dirty) {
+			return;
+		}
+		try {
+			StringBuilder sb= new StringBuilder();
+			sb.append(HEADER).append('\n');
+			for (Map.Entry<String,Entry> e : entries.entrySet()) {
+				sb.append(e.getValue().sha).append('\t').append(e.getValue().meta).append('\t').append(e.getKey()).append('\n');
+			}
+			String content= sb.toString();
+			Path tmp= cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+			try (BufferedWriter w= Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				w.write(content);
+				w.write(MAC_PREFIX + mac(content));
+				w.write('\n');
+			}
+			Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			dirty= false;
+			LOGGER.fine("cache saved, entries= "+entries.size());
+		}
+		catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Filelist digest cache not saved: "+e.getMessage(), e);
+		}
+	}
+
+	public int getReused() {
+		return reused;
+	}
+
+	public int getHashed() {
+		return hashed;
+	}
+
+	private void load() {
+		if (!Files.exists(cacheFile)) {
+			LOGGER.info("Filelist digest cache '"+cacheFile+"' not found, all files are hashed");
+			return;
+		}
+		try (BufferedReader r= Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+			StringBuilder sb= new StringBuilder();
+			Map<String,Entry> loaded= new HashMap<>();
+			String expectedMac= null;
+			String line;
+			while ((line= r.readLine()) != null) {
+				if (line.startsWith(MAC_PREFIX)) {
+					expectedMac= line.substring(MAC_PREFIX.length());
+					break;
+				}
+				sb.append(line).append('\n');
+				if (line.startsWith("#")) {
+					continue;
+				}
+				// sha, size, mtime, ctime, filekey, filename
+				String[] parts= line.split("\t", 6);
+				if (parts.length == 6) {
+					String meta= parts[1]+'\t'+parts[2]+'\t'+parts[3]+'\t'+parts[4];
+					loaded.put(parts[5], new Entry(parts[0], meta));
+				}
+			}
+			if (expectedMac == null || !MessageDigest.isEqual(
+					expectedMac.getBytes(StandardCharsets.US_ASCII), 
+					mac(sb.toString()).getBytes(StandardCharsets.US_ASCII))) {
+				LOGGER.severe("Filelist digest cache '"+cacheFile+"' MAC invalid, cache ignored");
+				dirty= true;
+				return;
+			}
+			entries.putAll(loaded);
+			LOGGER.fine("cache loaded, entries= "+entries.size());
+		}
+		catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Filelist digest cache not loaded: "+e.getMessage(), e);
+			dirty= true;
+		}
+	}
+
+	/*
+	 * size, mtime, ctime and file key of a file, or null if not available.
+	 * Size and mtime alone can be restored after a change, so a file
+	 * without change time or file key (e.g. on Windows) is always hashed.
+	 */
+	private static String metadata(String filename) {
+		try {
+			Path p= Paths.get(filename);
+			BasicFileAttributes a= Files.readAttributes(p, BasicFileAttributes.class);
+			if (!a.isRegularFile()) {
+				return null;
+			}
+			FileTime ctime;
+			try {
+				ctime= (FileTime)Files.getAttribute(p, "unix:ctime");
+			}
+			catch (UnsupportedOperationException | IllegalArgumentException e) {
+				// no change time on this file system
+				return null;
+			}
+			Object fileKey= a.fileKey();
+			if (ctime == null || fileKey == null) {
+				return null;
+			}
+			return a.size()+"\t"+a.lastModifiedTime().toMillis()+"\t"+ctime.toMillis()+"\t"+fileKey;
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	private String mac(String content) throws Exception {
+		Mac mac= Mac.getInstance(MAC_ALGORITHM);
+		mac.init(new SecretKeySpec(macKey, MAC_ALGORITHM));
+		return FileHasher.toHex(mac.doFinal(content.getBytes(StandardCharsets.UTF_8)));
+	}
+}
@@ -0,0 +1,293 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jose4j.lang.IntegrityException;
+import org.jose4j.lang.JoseException;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * Decryptor for JWE compact serialization with A128KW and A128CBC-HS256,
+ * the only algorithm pair accepted.
+ *
+ * A decryptor is built once per key. The Cipher and Mac instances are kept
+ * per thread and only initialized with the keys of a message. The header is
+ * checked before any crypto is done. A message with a wrong key or a
+ * modified content fails with an IntegrityException, as with jose4j.
+ *
+ * Each key has a key id, the first 64 bits of the SHA-256 hash of the key
+ * (base64url). A client may send it as 'kid' header, the receiver can then
+ * pick the key without trying to decrypt.
+ */
+public final class JweDecryptor {
+
+	private static final String ALG= "A128KW";
+	private static final String ENC= "A128CBC-HS256";
+
+	// Header as written by jose4j for the algorithm pair, checked without parsing
+	private static final String HEADER_JSON= "{\"alg\":\""+ALG+"\",\"enc\":\""+ENC+"\"";
+	private static final String HEADER_B64= base64(HEADER_JSON+"}");
+	// Header with a key id, as written by jose4j. The prefix is 45 characters, so its base64 does not depend on the key id
+	private static final String KID_PREFIX= HEADER_JSON+",\"kid\":\"";
+	private static final String KID_PREFIX_B64= base64(KID_PREFIX);
+	private static final int KEY_ID_LENGTH= 8;
+
+	private static final int CEK_LENGTH= 32;
+	private static final int IV_LENGTH= 16;
+	private static final int TAG_LENGTH= 16;
+
+	private static final ThreadLocal<Cipher> KEY_WRAP= ThreadLocal.withInitial(() -> cipher("AESWrap"));
+	private static final ThreadLocal<Cipher> AES_CBC= ThreadLocal.withInitial(() -> cipher("AES/CBC/PKCS5Padding"));
+	private static final ThreadLocal<Mac> HMAC= ThreadLocal.withInitial(() -> {
+		try {
+			return Mac.getInstance("HmacSHA256");
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final SecretKeySpec kek;
+	private final String keyId;
+	private final String keyHeaderB64;
+
+	public JweDecryptor(Key key) throws JoseException {
+		byte[] encoded= key.getEncoded();
+		try {
+			if (encoded == null || encoded.length != 16) {
+				throw new JoseException("A128KW requires a 128 bit key");
+			}
+			kek= new SecretKeySpec(encoded, "AES");
+			keyId= keyId(encoded);
+			keyHeaderB64= base64(KID_PREFIX+keyId+"\"}");
+		}
+		finally {
+			if (encoded != null) {
+				Arrays.fill(encoded, (byte)0);
+			}
+		}
+	}
+
+	public String getKeyId() {
+		return keyId;
+	}
+
+	/*
+	 * Decrypt a JWE compact serialization and return the payload
+	 */
+	public String decrypt(String compact) throws JoseException {
+		byte[] plain= decryptBytes(compact);
+		try {
+			return new String(plain, StandardCharsets.UTF_8);
+		}
+		finally {
+			Arrays.fill(plain, (byte)0);
+		}
+	}
+
+	/*
+	 * Decrypt a JWE compact serialization and return the UTF-8 bytes of the
+	 * payload. The caller should clear the bytes after use.
+	 */
+	public byte[] decryptBytes(String compact) throws JoseException {
+		int p1= compact.indexOf('.');
+		int p2= compact.indexOf('.', p1 + 1);
+		int p3= compact.indexOf('.', p2 + 1);
+		int p4= compact.indexOf('.', p3 + 1);
+		if (p1 < 0 || p2 < 0 || p3 < 0 || p4 < 0 || compact.indexOf('.', p4 + 1) >= 0) {
+			throw new JoseException("A JWE Compact Serialization must have exactly 5 parts separated by period ('.') characters");
+		}
+		String headerB64= compact.substring(0, p1);
+		checkHeader(headerB64);
+
+		Base64.Decoder b64= Base64.getUrlDecoder();
+		byte[] encryptedKey;
+		byte[] iv;
+		byte[] ciphertext;
+		byte[] tag;
+		try {
+			encryptedKey= b64.decode(compact.substring(p1 + 1, p2));
+			iv= b64.decode(compact.substring(p2 + 1, p3));
+			ciphertext= b64.decode(compact.substring(p3 + 1, p4));
+			tag= b64.decode(compact.substring(p4 + 1));
+		}
+		catch (IllegalArgumentException e) {
+			throw new JoseException("Invalid base64url encoding", e);
+		}
+		if (iv.length != IV_LENGTH || tag.length != TAG_LENGTH) {
+			throw new JoseException("Invalid IV or authentication tag length");
+		}
+
+		byte[] cek= unwrap(encryptedKey);
+		try {
+			byte[] aad= headerB64.getBytes(StandardCharsets.US_ASCII);
+			Mac mac= HMAC.get();
+			mac.init(new SecretKeySpec(cek, 0, CEK_LENGTH / 2, "HmacSHA256"));
+			mac.update(aad);
+			mac.update(iv);
+			mac.update(ciphertext);
+			long al= (long)aad.length * 8;
+			for (int i= 56; i >= 0; i-= 8) {
+				mac.update((byte)(al >>> i));
+			}
+			byte[] fullTag= mac.doFinal();
+			if (!MessageDigest.isEqual(tag, Arrays.copyOf(fullTag, TAG_LENGTH))) {
+				throw new IntegrityException("JWE Authentication Tag validation failed");
+			}
+
+			Cipher aes= AES_CBC.get();
+			aes.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cek, CEK_LENGTH / 2, CEK_LENGTH / 2, "AES"), new IvParameterSpec(iv));
+			return aes.doFinal(ciphertext);
+		}
+		catch (GeneralSecurityException e) {
+			throw new JoseException("Decryption failed", e);
+		}
+		finally {
+			Arrays.fill(cek, (byte)0);
+		}
+	}
+
+	/*
+	 * Accept only A128KW and A128CBC-HS256. Compression and critical 
+	 * headers are not supported, other header parameters are ignored.
+	 */
+	private void checkHeader(String headerB64) throws JoseException {
+		if (HEADER_B64.equals(headerB64) || keyHeaderB64.equals(headerB64)) {
+			return;
+		}
+		JSONObject header= parseHeader(headerB64);
+		if (!ALG.equals(header.get("alg"))) {
+			throw new JoseException("'alg' "+header.get("alg")+" is not permitted");
+		}
+		if (!ENC.equals(header.get("enc"))) {
+			throw new JoseException("'enc' "+header.get("enc")+" is not permitted");
+		}
+		if (header.containsKey("zip") || header.containsKey("crit")) {
+			throw new JoseException("JWE header parameter 'zip' or 'crit' is not supported");
+		}
+	}
+
+	/*
+	 * Key id from the header of a JWE compact serialization, null if the
+	 * header has no key id. The header is not checked otherwise.
+	 */
+	public static String headerKeyId(String compact) throws JoseException {
+		int p1= compact.indexOf('.');
+		String headerB64= (p1 < 0) ? compact : compact.substring(0, p1);
+		if (HEADER_B64.equals(headerB64)) {
+			return null;
+		}
+		if (headerB64.startsWith(KID_PREFIX_B64)) {
+			// Header written by jose4j, decode only the key id
+			try {
+				String rest= new String(Base64.getUrlDecoder().decode(headerB64.substring(KID_PREFIX_B64.length())), StandardCharsets.US_ASCII);
+				if (rest.endsWith("\"}") && rest.chars().limit(rest.length() - 2).allMatch(JweDecryptor::isKeyIdChar)) {
+					return rest.substring(0, rest.length() - 2);
+				}
+			}
+			catch (IllegalArgumentException e) {
+				// fall through
+			}
+		}
+		Object kid= parseHeader(headerB64).get("kid");
+		if (kid != null && !(kid instanceof String)) {
+			throw new JoseException("Invalid JWE header 'kid'");
+		}
+		return (String)kid;
+	}
+
+	/*
+	 * Key id of an AES key
+	 */
+	private static String keyId(byte[] key) throws JoseException {
+		try {
+			byte[] hash= MessageDigest.getInstance("SHA-256").digest(key);
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, KEY_ID_LENGTH));
+		}
+		catch (GeneralSecurityException e) {
+			throw new JoseException("SHA-256 not available", e);
+		}
+	}
+
+	private static boolean isKeyIdChar(int c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+	}
+
+	private static JSONObject parseHeader(String headerB64) throws JoseException {
+		try {
+			String json= new String(Base64.getUrlDecoder().decode(headerB64), StandardCharsets.UTF_8);
+			return (JSONObject)new JSONParser().parse(json);
+		}
+		catch (Exception e) {
+			throw new JoseException("Invalid JWE header", e);
+		}
+	}
+
+	private static String base64(String s) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(s.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/*
+	 * AES key unwrap of the content encryption key. A wrong key fails the 
+	 * integrity check of the key wrap.
+	 */
+	private byte[] unwrap(byte[] encryptedKey) throws JoseException {
+		try {
+			Cipher wrap= KEY_WRAP.get();
+			wrap.init(Cipher.UNWRAP_MODE, kek);
+			byte[] cek= wrap.unwrap(encryptedKey, "AES", Cipher.SECRET_KEY).getEncoded();
+			if (cek.length != CEK_LENGTH) {
+				Arrays.fill(cek, (byte)0);
+				throw new IntegrityException("Invalid content encryption key length");
+			}
+			return cek;
+		}
+		catch (GeneralSecurityException e) {
+			throw new IntegrityException("JWE key unwrap failed");
+		}
+	}
+
+	private static Cipher cipher(String transformation) {
+		try {
+			return Cipher.getInstance(transformation);
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
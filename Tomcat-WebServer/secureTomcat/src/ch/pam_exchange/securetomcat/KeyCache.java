@@ -0,0 +1,120 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import org.apache.catalina.startup.CatalinaProperties;
+import org.jose4j.keys.AesKey;
+
+/**
+ * Cache of derived AES keys per PAM alias.
+ *
+ * The shared secret for an alias is fetched once through A2A, hashed with
+ * SHA-256 and the first 128 bits are used as AES key. The cache keeps a 
+ * JweDecryptor built once for the key. Keys are kept warm by
+ * a SecretRefresher, which refreshes them in the background before they 
+ * expire, as long as they are in use. A cached key is only replaced early 
+ * when the caller asks for a refetch, which is done with bypassCache=true.
+ */
+public class KeyCache {
+
+	private static final String PROPERTY_KEY_CACHE_TTL= "pam.jwt.key.ttl";
+	private static final String PROPERTY_KEY_CACHE_SIZE= "pam.jwt.key.cache.size";
+	private static final long DEFAULT_TTL= 300;		// Time (in seconds) a derived key is kept
+	private static final int DEFAULT_SIZE= 16;		// Max number of aliases cached
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat";
+	private final Logger LOGGER= Logger.getLogger(LOGGER_NAME);
+
+	private final SecretRefresher<JweDecryptor> keys;
+
+	public KeyCache(PAM pam) {
+		long ttlMillis= readProperty(PROPERTY_KEY_CACHE_TTL, DEFAULT_TTL) * 1000;
+		int maxSize= (int)readProperty(PROPERTY_KEY_CACHE_SIZE, DEFAULT_SIZE);
+		this.keys= new SecretRefresher<>(pam, ttlMillis, maxSize, secret -> new JweDecryptor(deriveKey(secret)));
+	}
+
+	/*
+	 * Get the decryptor for an alias. Uses the cached key if available,
+	 * otherwise the secret is fetched from PAM (using the A2A cache).
+	 *
+	 * Returns null if the secret is not available.
+	 */
+	public JweDecryptor getDecryptor(String alias) {
+		return keys.get(alias);
+	}
+
+	/*
+	 * Fetch the secret again with bypassCache=true and replace the cached key.
+	 * Used when a message fails integrity validation with the cached key, 
+	 * or has a key id not known.
+	 */
+	public JweDecryptor refetch(String alias) {
+		return keys.refetch(alias);
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	/*
+	 * Generate symmetric 256 bit key using SHA256.
+	 * Use first 128 bits as AES key
+	 */
+	public static Key deriveKey(String sharedSecret) throws Exception {
+		MessageDigest sha= MessageDigest.getInstance("SHA-256");
+		byte[] sharedKey= sha.digest(sharedSecret.getBytes(StandardCharsets.UTF_8));
+		try {
+			return new AesKey(Arrays.copyOfRange(sharedKey, 0, 16));
+		}
+		finally {
+			Arrays.fill(sharedKey, (byte)0);
+		}
+	}
+
+	private long readProperty(String name, long defaultValue) {
+		String value= CatalinaProperties.getProperty(name);
+		if (value == null) {
+			LOGGER.fine("Property '"+name+"' not found, using default "+defaultValue);
+			return defaultValue;
+		}
+		try {
+			long v= Long.parseLong(value.trim());
+			if (v > 0) {
+				return v;
+			}
+		}
+		catch (Exception e) {
+			// fall through
+		}
+		LOGGER.info("Value of property '"+name+"' invalid, using default "+defaultValue);
+		return defaultValue;
+	}
+}
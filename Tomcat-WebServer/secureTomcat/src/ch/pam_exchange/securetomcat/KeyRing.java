@@ -0,0 +1,207 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Active keys of a JWT alias, indexed by key id.
+ *
+ * The key currently in the KeyCache is active. When the KeyCache holds a
+ * key with another id, by its refresh or by a refetch, the old key is 
+ * retired with the next token using it, and still accepted for the given
+ * time, so tokens made before the secret was rotated can be decoded.
+ *
+ * A token with a key id not known is looked up in the KeyCache first. If 
+ * the cached key has another id, the secret is fetched from PAM with 
+ * bypassCache=true, see refetch. The fetches are shared by all tokens of
+ * the alias, with or without key id, at most one per REFETCH_INTERVAL. A
+ * token arriving within the interval waits for the next fetch, it is not
+ * refused, so tokens with forged key ids cannot use up the fetches of 
+ * the others.
+ */
+final class KeyRing {
+
+	private static final int MAX_KEYS= 8;				// Max number of keys kept
+	private static final long REFETCH_INTERVAL= 1000;	// Min time (in ms) between two fetches with bypassCache=true
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat";
+	private final Logger LOGGER= Logger.getLogger(LOGGER_NAME);
+
+	private final KeyCache keyCache;
+	private final String alias;
+	private final long retireMillis;
+	private final Map<String,Entry> keys= new ConcurrentHashMap<>();
+	private CompletableFuture<JweDecryptor> nextFetch;	// guarded by this, the fetch callers wait for
+	private long lastRefetch;							// guarded by this, start of the last fetch
+
+	private static final class Entry {
+		final JweDecryptor decryptor;
+		final long added;
+		volatile long retired;
+
+		Entry(JweDecryptor decryptor, long added) {
+			this.decryptor= decryptor;
+			this.added= added;
+		}
+	}
+
+	KeyRing(KeyCache keyCache, String alias, long retireMillis) {
+		this.keyCache= keyCache;
+		this.alias= alias;
+		this.retireMillis= retireMillis;
+	}
+
+	/*
+	 * Decryptor for a key id. Returns null if there is no key with this
+	 * id, or the secret is not available.
+	 */
+	JweDecryptor get(String kid) {
+		long now= System.currentTimeMillis();
+		Entry e= keys.get(kid);
+		if (e != null) {
+			if (e.retired == 0) {
+				// Retire the key if the secret was changed in the KeyCache meanwhile
+				JweDecryptor current= keyCache.getDecryptor(alias);
+				if (current != null && !kid.equals(current.getKeyId())) {
+					LOGGER.info("Key id "+kid+" replaced by "+current.getKeyId());
+					add(current, now);
+				}
+			}
+			long retired= e.retired;
+			if (retired == 0 || now - retired <= retireMillis) {
+				return e.decryptor;
+			}
+			LOGGER.fine("Key id "+kid+" expired");
+			keys.remove(kid, e);
+			return null;
+		}
+
+		// Key rotated and already in the cache
+		JweDecryptor current= keyCache.getDecryptor(alias);
+		if (current == null) {
+			return null;
+		}
+		add(current, now);
+		if (kid.equals(current.getKeyId())) {
+			return current;
+		}
+
+		// Key id not seen, fetch from PAM
+		LOGGER.info("Key id "+kid+" not known, fetch with bypassCache=true");
+		JweDecryptor fresh= refetch();
+		if (fresh != null && kid.equals(fresh.getKeyId())) {
+			return fresh;
+		}
+		e= keys.get(kid);
+		return (e != null && e.retired == 0) ? e.decryptor : null;
+	}
+
+	int size() {
+		return keys.size();
+	}
+
+	/*
+	 * Fetch the secret with bypassCache=true, for a token with a key id not
+	 * known or a token without key id failing with the cached key. At most
+	 * one fetch per REFETCH_INTERVAL is made, callers within the interval 
+	 * wait for the next fetch and share it. Returns null if the secret is 
+	 * not available.
+	 */
+	JweDecryptor refetch() {
+		CompletableFuture<JweDecryptor> f;
+		long wait;
+		synchronized (this) {
+			if (nextFetch != null) {
+				f= nextFetch;
+				wait= -1;
+			} else {
+				f= new CompletableFuture<>();
+				nextFetch= f;
+				long now= System.currentTimeMillis();
+				wait= Math.max(0, lastRefetch + REFETCH_INTERVAL - now);
+				lastRefetch= now + wait;
+			}
+		}
+		if (wait < 0) {
+			return f.join();
+		}
+
+		JweDecryptor fresh= null;
+		try {
+			if (wait > 0) {
+				Thread.sleep(wait);
+			}
+			fresh= keyCache.refetch(alias);
+			if (fresh != null) {
+				add(fresh, System.currentTimeMillis());
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			synchronized (this) {
+				if (nextFetch == f) {
+					nextFetch= null;
+				}
+			}
+			f.complete(fresh);
+		}
+		return fresh;
+	}
+
+	/*
+	 * Add the key, which becomes the active key. All other keys are retired.
+	 */
+	private synchronized void add(JweDecryptor decryptor, long now) {
+		Entry e= keys.get(decryptor.getKeyId());
+		if (e != null && e.retired == 0) {
+			return;
+		}
+		for (Entry other : keys.values()) {
+			if (other.retired == 0) {
+				other.retired= now;
+			}
+		}
+		keys.put(decryptor.getKeyId(), new Entry(decryptor, now));
+		LOGGER.info("Active key id "+decryptor.getKeyId()+", keys= "+keys.size());
+
+		// Drop expired keys, then the oldest if there are too many
+		keys.values().removeIf(k -> k.retired != 0 && now - k.retired > retireMillis);
+		while (keys.size() > MAX_KEYS) {
+			Entry oldest= null;
+			for (Entry k : keys.values()) {
+				if (k.retired != 0 && (oldest == null || k.added < oldest.added)) {
+					oldest= k;
+				}
+			}
+			keys.remove(oldest.decryptor.getKeyId());
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Protects the A2A agent against login storms.
+ *
+ * Aliases where A2A returned no password are remembered for a while, and
+ * logins for them fail without calling A2A. A token bucket per alias limits
+ * the rate of A2A calls, logins above the rate fail without calling A2A.
+ */
+final class LoginThrottle {
+
+	private static final int MAX_ENTRIES= 1024;		// Cleanup of idle entries above this size
+
+	private final long negativeTtlMillis;
+	private final double ratePerMilli;
+	private final double burst;
+	private final Map<String,Long> negative= new ConcurrentHashMap<>();
+	private final Map<String,Bucket> buckets= new ConcurrentHashMap<>();
+
+	private static final class Bucket {
+		private double tokens;
+		private long last;
+
+		Bucket(double tokens, long now) {
+			this.tokens= tokens;
+			this.last= now;
+		}
+
+		synchronized boolean tryTake(double ratePerMilli, double burst, long now) {
+			tokens= Math.min(burst, tokens + (now - last) * ratePerMilli);
+			last= now;
+			if (tokens < 1) {
+				return false;
+			}
+			tokens-= 1;
+			return true;
+		}
+
+		synchronized boolean isFull(double ratePerMilli, double burst, long now) {
+			return tokens + (now - last) * ratePerMilli >= burst;
+		}
+	}
+
+	/*
+	 * negativeTtlMillis - 0 disables the negative cache
+	 * ratePerSecond     - 0 disables rate limiting
+	 */
+	LoginThrottle(long negativeTtlMillis, double ratePerSecond, int burst) {
+		this.negativeTtlMillis= negativeTtlMillis;
+		this.ratePerMilli= ratePerSecond / 1000;
+		this.burst= Math.max(1, burst);
+	}
+
+	/*
+	 * Did A2A recently return no password for the alias?
+	 */
+	boolean isNegative(String alias) {
+		Long until= negative.get(alias);
+		if (until == null) {
+			return false;
+		}
+		if (until > System.currentTimeMillis()) {
+			return true;
+		}
+		negative.remove(alias, until);
+		return false;
+	}
+
+	void setNegative(String alias) {
+		if (negativeTtlMillis > 0) {
+			cleanup();
+			negative.put(alias, System.currentTimeMillis() + negativeTtlMillis);
+		}
+	}
+
+	/*
+	 * Take a token for an A2A call for the alias
+	 */
+	boolean tryAcquire(String alias) {
+		if (ratePerMilli <= 0) {
+			return true;
+		}
+		long now= System.currentTimeMillis();
+		Bucket b= buckets.get(alias);
+		if (b == null) {
+			cleanup();
+			b= buckets.computeIfAbsent(alias, a -> new Bucket(burst, now));
+		}
+		return b.tryTake(ratePerMilli, burst, now);
+	}
+
+	/*
+	 * Remove expired negative entries and idle buckets, when there are many
+	 */
+	private void cleanup() {
+		long now= System.currentTimeMillis();
+		if (negative.size() > MAX_ENTRIES) {
+			negative.values().removeIf(until -> until <= now);
+		}
+		if (buckets.size() > MAX_ENTRIES) {
+			buckets.values().removeIf(b -> b.isFull(ratePerMilli, burst, now));
+		}
+	}
+}
@@ -28,42 +28,36 @@ TO-DO
 
 package ch.pam_exchange.securetomcat;
 
-import java.security.Key;
-import java.security.MessageDigest;
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.Map;
 
-import org.jose4j.jwa.AlgorithmConstraints.ConstraintType;
-import org.jose4j.jwa.AlgorithmConstraints;
-import org.jose4j.jwe.ContentEncryptionAlgorithmIdentifiers;
-import org.jose4j.jwe.JsonWebEncryption;
-import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
-import org.jose4j.keys.AesKey;
 import org.jose4j.lang.IntegrityException;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 import ch.pam_exchange.securetomcat.PAM;
 
 import org.apache.catalina.startup.CatalinaProperties;
 
-public class Message {
+public class Message implements Closeable {
 
 	private static final String PROPERTY_JWT_ALIAS= "pam.jwt.alias";
 	private static final String PROPERTY_JWT_TIME_WINDOW= "pam.jwt.time.window";
 	private static final long DEFAULT_TIME_WINDOW= 300;		// Permitted time window (in seconds) between not-before and expire
+	private static final String PROPERTY_JWT_REPLAY_STORE= "pam.jwt.replay.store";
+	private static final String PROPERTY_JWT_REPLAY_MEMORY= "pam.jwt.replay.memory";
+	private static final long DEFAULT_REPLAY_MEMORY= 16;		// Memory limit (in MB) of the compact replay store
 	
 	private static final String MSG_ERR_PROPERTY_NOT_FOUND= "*** ERROR - Property not found ***";
 	private static final String MSG_ERR_TOKEN_EXPIRED= "*** ERROR - Token has expired ***";
 	private static final String MSG_ERR_TOKEN_REPLAY= "*** ERROR - Token replay ***";
+	private static final String MSG_ERR_REPLAY_FULL= "*** ERROR - Replay store full ***";
 	private static final String MSG_ERR_TIME_WINDOW= "*** ERROR - Invalid time window ***";
 	private static final String MSG_ERR_INVALID_DATA= "*** ERROR - Invalid data ***";
+	private static final String MSG_ERR_MISSING_CLAIM= "*** ERROR - Missing claim ***";
 	private static final String MSG_ERR_INTEGRITY= "*** ERROR - Message integrity invalid ***";
 	private static final String MSG_ERR_EXCEPTION= "*** ERROR - Exception ***";
 	private static final String MSG_ERR_NOT_ALLOWED= "*** ERROR - Call to getPassword is not allowed ***";
@@ -73,8 +67,10 @@ public class Message {
 	private long timeWindow= 0;
 	private String jwtAlias= null;
 	private PAM pam= new PAM();
-	private Map<String,Long> replayMap= new HashMap<>();
-	private int cnt= 0;
+	private KeyCache keyCache= new KeyCache(pam);
+	private KeyRing keyRing;
+	private ReplayStore replayStore;
+	private final AtomicInteger cnt= new AtomicInteger();
 
 	public Message () {
 		// Fetch alias from property
@@ -99,50 +95,111 @@ public class Message {
 			}
 		}
 		LOGGER.fine("timeWindow= "+timeWindow);
+		
+		// Keys are accepted for timeWindow seconds after they were replaced
+		keyRing= new KeyRing(keyCache, jwtAlias, timeWindow*1000);
+		
+		// Select replay store, "memory" (default), "compact", "journal", "cluster" or a class name
+		String replayStoreStr= CatalinaProperties.getProperty(PROPERTY_JWT_REPLAY_STORE);
+		LOGGER.fine("Property '"+PROPERTY_JWT_REPLAY_STORE+"'= "+replayStoreStr);
+		replayStore= createReplayStore(replayStoreStr);
+	}
+	
+	/*
+	 * Replay store selected by name. A class name must be a ReplayStore
+	 * with a public constructor taking the time window (in seconds), or 
+	 * without arguments. If the store cannot be created, the default 
+	 * memory store is used.
+	 */
+	private ReplayStore createReplayStore(String name) {
+		if (name == null || name.isBlank() || "memory".equalsIgnoreCase(name.trim())) {
+			return new TimingWheelReplayStore(timeWindow);
+		}
+		name= name.trim();
+		if ("compact".equalsIgnoreCase(name)) {
+			long replayMemory= DEFAULT_REPLAY_MEMORY;
+			String replayMemoryStr= CatalinaProperties.getProperty(PROPERTY_JWT_REPLAY_MEMORY);
+			if (replayMemoryStr != null) {
+				try {
+					replayMemory= Long.parseLong(replayMemoryStr);
+				} catch (Exception e) {
+					LOGGER.info("Value of property '"+PROPERTY_JWT_REPLAY_MEMORY+"' invalid, using default "+DEFAULT_REPLAY_MEMORY);
+				}
+			}
+			CompactReplayIndex index= new CompactReplayIndex(replayMemory*1024*1024);
+			LOGGER.info("Compact replay store, capacity= "+index.capacity()+", memory= "+index.memoryBytes());
+			return index;
+		}
+		if ("journal".equalsIgnoreCase(name)) {
+			name= ReplayJournal.class.getName();
+		}
+		if ("cluster".equalsIgnoreCase(name)) {
+			name= ClusterReplayStore.class.getName();
+		}
+		try {
+			ClassLoader loader= Thread.currentThread().getContextClassLoader();
+			if (loader == null) {
+				loader= Message.class.getClassLoader();
+			}
+			Class<? extends ReplayStore> cls= Class.forName(name, true, loader).asSubclass(ReplayStore.class);
+			ReplayStore store;
+			try {
+				store= cls.getConstructor(long.class).newInstance(timeWindow);
+			} catch (NoSuchMethodException e) {
+				store= cls.getConstructor().newInstance();
+			}
+			LOGGER.info("Replay store "+name+", capacity= "+store.capacity());
+			return store;
+		} catch (Exception e) {
+			LOGGER.log(Level.SEVERE, "Replay store '"+name+"' not available, using memory", e);
+			return new TimingWheelReplayStore(timeWindow);
+		}
 	}
 	
 	public int getCnt() {
-		return cnt;
+		return cnt.get();
+	}
+
+	/*
+	 * Close the replay store, when the web application is stopped. A 
+	 * journal or cluster store holds a file or a port, which the next 
+	 * instance after a reload needs.
+	 */
+	@Override
+	public void close() {
+		LOGGER.info("Close replay store, size= "+replayStore.size());
+		replayStore.close();
 	}
 	
 	/*
-	 * Add a token to the list of tokens
+	 * Add a token to the list of tokens. The token is remembered until 
+	 * it has expired and at least timeWindow seconds after it was issued.
 	 * 
 	 * true  - If the token is new
 	 * false - If the token already exist
 	 */
-	private boolean replayAdd( String id, Long ts ) {
-		if (replayMap.put(id,ts) == null) {
-			LOGGER.fine("id= "+id+", ts= "+ts);
+	private boolean replayAdd( String id, long iat, long exp ) {
+		long deadline= Math.max(iat+timeWindow, exp);
+		if (replayStore.add(id,deadline)) {
+			LOGGER.fine("id= "+id+", iat= "+iat+", deadline= "+deadline+", replay size= "+replayStore.size());
 			return true;
 		}
-		LOGGER.severe("id= "+id+", ts= "+ts+" -- duplicate");
+		LOGGER.severe("id= "+id+", iat= "+iat+" -- duplicate");
 		return false; // replay, already exist
 	}
 	
-	/*
-	 * Remove tokens from list
-	 * All tokens with value less than ts are removed
-	 */
-	private void replayCleanup( Long ts ) {
-		LOGGER.fine("ts= "+ts);
-		replayMap.entrySet().removeIf( e -> e.getValue() < ts);
-	}
-	
 	/*
 	 * JWT message decode
 	 */
 	public String jwtDecode(String jweString) {
-		String jwePayload= "";		// payload from JWE
+		byte[] jwePayload= null;		// payload from JWE, UTF-8
 		String userData;
-		Boolean bypassCache= false;
-		Key key;
-		byte[] sharedKey;
-		MessageDigest sha;
+		String kid= null;
+		JweDecryptor decryptor;
 
-		cnt++;
+		int n= cnt.incrementAndGet();
 		
-		LOGGER.fine("cnt= "+cnt);
+		LOGGER.fine("cnt= "+n);
 		LOGGER.fine("Property '"+PROPERTY_JWT_ALIAS+"'= "+jwtAlias);
 		LOGGER.fine("timeWindow= "+timeWindow);
 
@@ -152,48 +209,47 @@ public class Message {
 		}
 		
 		// Decode message
-		for (int attempt=0; attempt<1; attempt++) {
+		for (int attempt=0; attempt<2; attempt++) {
 			/*
-			 * Try at most twice to fetch credentials. 
-			 * First using the A2A cache, second time bypass cache
+			 * Try at most twice to decrypt the message. 
+			 * First using the cached key, second time refetch the key 
+			 * with bypass cache. The second attempt is only made when the 
+			 * message integrity fails with the cached key. The fetch is 
+			 * shared with the other tokens, see KeyRing.refetch.
+			 * 
+			 * A message with a key id is decrypted with the key for the id,
+			 * which is fetched from PAM if not known. There is no second 
+			 * attempt.
 			 */
 			try {
-				String sharedSecret= pam.getPassword( jwtAlias, bypassCache ); 
-				if (sharedSecret.startsWith("***")) {
-					LOGGER.severe("A password not available: '"+sharedSecret+"'");
+				if (attempt == 0) {
+					kid= JweDecryptor.headerKeyId(jweString);
+					LOGGER.fine("kid= "+kid);
+					decryptor= (kid == null) ? keyCache.getDecryptor(jwtAlias) : keyRing.get(kid);
+					if (decryptor == null && kid != null) {
+						LOGGER.severe("No key for key id "+kid);
+						return MSG_ERR_INTEGRITY;
+					}
+				} else {
+					decryptor= keyRing.refetch();
+				}
+				if (decryptor == null) {
 					return null;
 				}
-				LOGGER.info("A password found - OK");
 				
-				// Generate symmetric 256 bit using SHA256.
-				sha= MessageDigest.getInstance("SHA-256");
-				// Use first 128 bits as AES key
-				sharedKey= sha.digest(sharedSecret.getBytes("UTF-8"));
-				key= new AesKey( Arrays.copyOfRange( sharedKey, 0, 16) );
-				
-				JsonWebEncryption jwe = new JsonWebEncryption();
-				jwe.setAlgorithmHeaderValue(KeyManagementAlgorithmIdentifiers.A128KW);
-				jwe.setEncryptionMethodHeaderParameter(ContentEncryptionAlgorithmIdentifiers.AES_128_CBC_HMAC_SHA_256);
-				jwe.setKey(key);
-				
-				// --- decrypt ---
-				jwe = new JsonWebEncryption();
-				jwe.setAlgorithmConstraints(new AlgorithmConstraints(ConstraintType.PERMIT, KeyManagementAlgorithmIdentifiers.A128KW));
-				jwe.setContentEncryptionAlgorithmConstraints(new AlgorithmConstraints(ConstraintType.PERMIT, ContentEncryptionAlgorithmIdentifiers.AES_128_CBC_HMAC_SHA_256));
-				jwe.setKey(key);
-				jwe.setCompactSerialization(jweString);
-				jwePayload= jwe.getPayload();
-				LOGGER.fine("jwePayload= "+jwePayload);
+				// --- decrypt (A128KW, A128CBC-HS256) ---
+				jwePayload= decryptor.decryptBytes(jweString);
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.fine("jwePayload= "+new String(jwePayload, StandardCharsets.UTF_8));
+				}
 				break;	// loop
 				
 			} catch (Exception e) {
-				if (attempt==0) {
-					bypassCache= true;
-					LOGGER.info("Try again with bypassCache=true");
-					continue; // loop
-				}
-				
 				if (e instanceof IntegrityException) {
+					if (attempt==0 && kid == null) {
+						LOGGER.info("Try again with bypassCache=true");
+						continue; // loop
+					}
 					LOGGER.severe("Integrity exception");
 					LOGGER.log(Level.SEVERE, e.getMessage(), e);
 					return MSG_ERR_INTEGRITY;
@@ -201,32 +257,22 @@ public class Message {
 				LOGGER.log(Level.SEVERE, e.getMessage(), e);
 				return MSG_ERR_EXCEPTION;
 			} finally {
-				// should do something better to wipe memory.
 				LOGGER.fine("Cleanup");
-				key= null;
-				sharedKey= null;
-				sha= null;
-				System.gc();
+				decryptor= null;
 			}
 		}
 		 
 		// Parse and check message token
 		try {
-			JSONParser parser = new JSONParser();
-			JSONObject jsonObject= (JSONObject)parser.parse(jwePayload);
-			LOGGER.fine("json: "+jsonObject);
+			ClaimsReader claims= ClaimsReader.read(jwePayload);
 			
 			Long now= new Date().getTime() / 1000;
 			LOGGER.fine("now= "+now);
 
-			// Cleanup replay list
-			LOGGER.fine("Replay list cleanup: "+(now-timeWindow));
-			replayCleanup(now-timeWindow);
-
 			// Get not-before and expiery from token
-			Long nbf= (Long)jsonObject.get("nbf");
+			Long nbf= claims.getNbf();
 			LOGGER.fine("Token nbf= "+nbf);
-			Long exp= (Long)jsonObject.get("exp");
+			Long exp= claims.getExp();
 			LOGGER.fine("Token exp= "+exp);
 			
 			// Check for invalid time window 
@@ -244,31 +290,43 @@ public class Message {
 			LOGGER.fine("Token not expired");
 
 			// Check for replay using jti and iat
-			String jti= (String)jsonObject.get("jti");
+			String jti= claims.getJti();
 			LOGGER.fine("Token jti: "+jti);
 
-			Long iat= (Long)jsonObject.get("iat");
+			Long iat= claims.getIat();
 			LOGGER.fine("Token iat: "+iat);
 
+			// A token without jti or iat cannot be checked for replay
+			if (jti == null || iat == null) {
+				LOGGER.severe("Token jti or iat missing");
+				return MSG_ERR_MISSING_CLAIM;
+			}
+
 			// Add token to replay list. Returns "false" if already known
-			if (!replayAdd(jti,iat)) {
+			if (!replayAdd(jti,iat,exp)) {
 				LOGGER.severe("Replay token - "+jti);
 				return MSG_ERR_TOKEN_REPLAY;
 			}
 			LOGGER.fine("Token unique (in time window)");
 			
 			// Get and return userData
-			userData= (String)jsonObject.get("userData");
+			userData= claims.getUserData();
 			LOGGER.info("Plaintext userData= "+userData);
 			return userData;
 		} catch (Exception e) {
-			if (e instanceof ParseException) {
+			if (e instanceof ReplayStore.FullException) {
+				LOGGER.severe("Replay store full, token rejected");
+				return MSG_ERR_REPLAY_FULL;
+			}
+			if (e instanceof ClaimsReader.InvalidClaimsException) {
 				LOGGER.severe("JSON parse exception, invalid data");
 				LOGGER.log(Level.SEVERE, e.getMessage(), e);
 				return MSG_ERR_INVALID_DATA;
 			}
 			LOGGER.log(Level.SEVERE, e.getMessage(), e);
 			return MSG_ERR_EXCEPTION;
+		} finally {
+			Arrays.fill(jwePayload, (byte)0);
 		}
 	}
 	
@@ -30,7 +30,6 @@ package ch.pam_exchange.securetomcat;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.security.MessageDigest;
 import java.util.ArrayList;
@@ -39,6 +38,12 @@ import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -66,19 +71,27 @@ public class PAM implements PropertySource {
 	private static final String PROPERTY_KEYSTORE_ALIAS = "pam.keystore.alias";
 	private static final String PROPERTY_FILELIST_ALIAS = "pam.filelist.alias";
 	private static final String PROPERTY_FILELIST_NAME = "pam.filelist.name";
+	private static final String PROPERTY_FILELIST_THREADS = "pam.filelist.threads";
+	private static final String PROPERTY_FILELIST_CACHE_NAME = "pam.filelist.cache.name";
+	private static final String PROPERTY_FILELIST_CACHE_ALIAS = "pam.filelist.cache.alias";
 	private static final String MSG_ERR_PROPERTY_NOT_FOUND = "*** ERROR - Property not found ***";
 	private static final String MSG_ERR_NOT_ALLOWED = "*** ERROR - Call to getPassword is not allowed ***";
 	private static final String LOGGER_NAME = "ch.pam_exchange.securetomcat";
 	private final Logger LOGGER = Logger.getLogger(LOGGER_NAME);
 	private static final String jarSelfKnown = System.getProperty("catalina.base").replace("\\", "/") + "/lib/secureTomcat.jar";
 	
+	// A2A calls in progress, per alias and bypassCache flag
+	private static final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+	private static final LongAdder a2aFetches = new LongAdder();
+	private static final LongAdder a2aCoalesced = new LongAdder();
+
 	private final Random rnd = new Random();
 	private Boolean isAllowed = false;
 	private final Boolean isWindows = System.getProperty("os.name").toLowerCase().indexOf("win") >= 0;
 
 	public PAM() {
 		try {
-			String callerClass = Thread.currentThread().getStackTrace()[2].getClassName();
+			String callerClass = CallstackFingerprint.callerClass();
 			LOGGER.fine("callerClass= " + callerClass);
 
 			if ("ch.pam_exchange.securetomcat.Message".equals(callerClass)) {
@@ -134,21 +147,73 @@ public class PAM implements PropertySource {
 		if (PROPERTY_KEYSTORE_ALIAS.equals(arg0)) {
 
 			try {
+				/*
+				 * The checks and the keystore password are independent until 
+				 * the password is released. All A2A lookups are started at once
+				 * and the files are hashed while waiting for them. The password
+				 * is only returned after both checks passed.
+				 */
+				String callstackAlias = null;
 				if (verifyCallstack) {
-					/*
-					 * verify call stack is as expected
-					 */
-					LOGGER.fine("Verify callstack");
-
-					String callstackAlias = CatalinaProperties.getProperty(PROPERTY_CALLSTACK_ALIAS);
+					callstackAlias = CatalinaProperties.getProperty(PROPERTY_CALLSTACK_ALIAS);
 					if (callstackAlias == null) {
 						LOGGER.severe("Property '" + PROPERTY_CALLSTACK_ALIAS + "' not found");
 						return null;
 					}
 					LOGGER.fine("callstackAlias= " + callstackAlias);
+				}
+
+				String filelistName = null;
+				String filelistAlias = null;
+				if (verifyFilelist) {
+					filelistName = CatalinaProperties.getProperty(PROPERTY_FILELIST_NAME);
+					if (filelistName == null) {
+						LOGGER.severe("Property '" + PROPERTY_FILELIST_NAME + "' not found");
+						return null;
+					}
+					LOGGER.fine("filelistName= " + filelistName);
+
+					filelistAlias = CatalinaProperties.getProperty(PROPERTY_FILELIST_ALIAS);
+					if (filelistAlias == null) {
+						LOGGER.severe("Property '" + PROPERTY_FILELIST_ALIAS + "' not found");
+						return null;
+					}
+					LOGGER.fine("filelistAlias= " + filelistAlias);
+				}
+
+				String keystoreAlias = CatalinaProperties.getProperty(PROPERTY_KEYSTORE_ALIAS);
+				if (keystoreAlias == null) {
+					LOGGER.severe("Property '" + PROPERTY_KEYSTORE_ALIAS + "' not found");
+					return null;
+				}
+				LOGGER.fine("keystoreAlias= " + keystoreAlias);
+
+				CompletableFuture<String> expectedCallstackHash = verifyCallstack ? getPasswordAsync(callstackAlias, false) : null;
+				CompletableFuture<String> expectedFilelistHash = verifyFilelist ? getPasswordAsync(filelistAlias, false) : null;
+				CompletableFuture<String> password = getPasswordAsync(keystoreAlias, false);
+
+				CompletableFuture<Boolean> filelistOK = null;
+				if (verifyFilelist) {
+					/*
+					 * get list of files to check from FILELIST calculate hash of all files and
+					 * compare with expected value retrieved from A2A.
+					 */
+					LOGGER.fine("verify filelist");
+					String name = filelistName;
+					filelistOK = CompletableFuture.supplyAsync(() -> checkFilelist(name, expectedFilelistHash, strictChecking), r -> {
+						Thread t = new Thread(r, "securetomcat-filelist");
+						t.setDaemon(true);
+						t.start();
+					});
+				} else {
+					LOGGER.warning("filelist not verified");
+				}
 
-					String expectedCallstackHash = getPassword(callstackAlias);
-					LOGGER.fine("expectedCallstackHash= " + expectedCallstackHash);
+				if (verifyCallstack) {
+					/*
+					 * verify call stack is as expected, on the calling thread
+					 */
+					LOGGER.fine("Verify callstack");
 
 					Boolean callstackOK = checkCallstack(expectedCallstackHash, strictChecking);
 					LOGGER.fine("callstackOK= " + callstackOK);
@@ -166,34 +231,10 @@ public class PAM implements PropertySource {
 				}
 
 				if (verifyFilelist) {
-					/*
-					 * get list of files to check from FILELIST calculate hash of all files and
-					 * compare with expected value retrieved from A2A.
-					 */
-					LOGGER.fine("verify filelist");
-
-					String filelistName = CatalinaProperties.getProperty(PROPERTY_FILELIST_NAME);
-					if (filelistName == null) {
-						LOGGER.severe("Property '" + PROPERTY_FILELIST_NAME + "' not found");
-						return null;
-					}
-					LOGGER.fine("filelistName= " + filelistName);
-
-					String filelistAlias = CatalinaProperties.getProperty(PROPERTY_FILELIST_ALIAS);
-					if (filelistAlias == null) {
-						LOGGER.severe("Property '" + PROPERTY_FILELIST_ALIAS + "' not found");
-						return null;
-					}
-					LOGGER.fine("filelistAlias= " + filelistAlias);
-
-					String expectedFilelistHash = "";
-					expectedFilelistHash = getPassword(filelistAlias);
-					LOGGER.fine("expectedFilelistHash= " + expectedFilelistHash);
-
-					Boolean filelistOK = checkFilelist(filelistName, expectedFilelistHash, strictChecking);
-					LOGGER.fine("filelistOK= " + filelistOK);
+					Boolean ok = filelistOK.join();
+					LOGGER.fine("filelistOK= " + ok);
 
-					if (!filelistOK) {
+					if (!ok) {
 						// filelist hash does not match
 						LOGGER.severe("filelist hash not OK. Password for keystore is not released");
 						LOGGER.severe("filelist alias: " + filelistAlias);
@@ -201,28 +242,19 @@ public class PAM implements PropertySource {
 						return null;
 					}
 					LOGGER.info("filelist verify - OK");
-				} else {
-					LOGGER.warning("filelist not verified");
 				}
 
 				/*
-				 * passed callstack and files check, now get the alias for the property
-				 * (keystore.alias) and retrieve the password via A2A call from PAM.
+				 * passed callstack and files check, now release the password 
+				 * for the keystore alias.
 				 */
-				String keystoreAlias = CatalinaProperties.getProperty(PROPERTY_KEYSTORE_ALIAS);
-				if (keystoreAlias == null) {
-					LOGGER.severe("Property '" + PROPERTY_KEYSTORE_ALIAS + "' not found");
-					return null;
-				}
-				LOGGER.fine("keystoreAlias= " + keystoreAlias);
-
-				String password = getPassword(keystoreAlias);
-				if (password.startsWith("***")) {
-					LOGGER.severe("A keystore password not available: '" + password + "'");
+				String keystorePassword = password.join();
+				if (keystorePassword.startsWith("***")) {
+					LOGGER.severe("A keystore password not available: '" + keystorePassword + "'");
 					return null;
 				}
 				LOGGER.info("A keystore password found - OK");
-				return password;
+				return keystorePassword;
 
 			} 
 			catch (Exception e) {
@@ -246,50 +278,217 @@ public class PAM implements PropertySource {
 			return MSG_ERR_NOT_ALLOWED;
 		}
 
+		PamMetrics.Alias metrics = PamMetrics.alias(alias);
+		metrics.call(bpc);
+
+		// Join a fetch of the same alias already in progress
+		String flightKey = alias + "|" + bpc;
+		CompletableFuture<String> mine = new CompletableFuture<>();
+		CompletableFuture<String> inProgress = inFlight.putIfAbsent(flightKey, mine);
+		if (inProgress != null) {
+			a2aCoalesced.increment();
+			metrics.coalesced();
+			LOGGER.fine("alias='" + alias + "', join A2A call in progress");
+			return inProgress.join();
+		}
+		a2aFetches.increment();
+
+		long start = System.nanoTime();
+		String password = null;
+		try {
+			password = retrievePassword(metrics, alias, bpc);
+			return password;
+		} 
+		finally {
+			metrics.fetched(System.nanoTime() - start, password);
+			inFlight.remove(flightKey, mine);
+			mine.complete(password != null ? password : "*** Not available *** (" + rnd.nextInt(65536) + ")");
+		}
+	}
+
+	private String retrievePassword(PamMetrics.Alias metrics, String alias, Boolean bpc) {
+		A2ARetryPolicy policy = A2ARetryPolicy.shared();
+		if (!policy.allowRequest()) {
+			metrics.rejected();
+			LOGGER.severe("A2A circuit open, alias: " + alias);
+			return "*** not available - circuit open *** (" + rnd.nextInt(65536) + ")";
+		}
 		CSPMClient a2a = new CSPMClient();
 		String a2aStatusCode = "999";
+		long attemptStart = 0;
 
 		try {
-			for (int i = 0; i < 10; i++) {
+			for (int i = 0; ; i++) {
 				LOGGER.fine("alias='" + alias + "', try A2A with bypassCache=" + bpc);
+				attemptStart = System.nanoTime();
 				a2a.retrieveCredentials(alias, bpc);
 				a2aStatusCode = a2a.getStatusCode();
+				metrics.attempt(a2aStatusCode, System.nanoTime() - attemptStart);
+				attemptStart = 0;
 				LOGGER.info("alias='" + alias + "', a2aStatusCode=" + a2aStatusCode);
 
 				if ("400".equals(a2aStatusCode)) {
+					policy.onSuccess();
 					String a2aUsername = a2a.getUserId();
 					LOGGER.fine("Username: " + a2aUsername);
 					String a2aPassword = a2a.getPassword();
 					if (!strictChecking) LOGGER.fine("Password: " + a2aPassword);
 					return a2aPassword;
 				}
-				if ("401".equals(a2aStatusCode)) {
+				if (policy.isRetryable(a2aStatusCode) && policy.canRetry(i)) {
 					// Sometimes a2a.retrieveCredentials returns 401, even
 					// when nothing is wrong. Wait a bit, then try again.
-					// Stop after X attempts
-					LOGGER.warning("A2A got 401, wait and try again");
-					Thread.sleep(250);
+					long delay = policy.backoff(i);
+					metrics.retry();
+					LOGGER.warning("A2A got " + a2aStatusCode + ", wait " + delay + " ms and try again");
+					Thread.sleep(delay);
 					continue;
 				}
-				break; // neither 400 nor 401 returned, leave loop and handle error.
+				break; // fatal status code or out of retries, leave loop and handle error.
 			}
+			policy.onSuccess(); // the agent answered, also with a retryable code
 			LOGGER.severe("A2A alias: " + alias);
 			LOGGER.severe("A2A return code: " + a2aStatusCode + " - " + a2a.getMessage());
 			return "*** not available - rc=" + a2aStatusCode + " *** (" + rnd.nextInt(65536) + ")";
 		} 
 		catch (Exception e) {
+			policy.onFailure();
+			if (attemptStart != 0) {
+				metrics.attempt(PamMetrics.STATUS_EXCEPTION, System.nanoTime() - attemptStart);
+			}
 			LOGGER.log(Level.SEVERE, e.getMessage(), e);
 		} 
 		finally {
-			// cleanup memory, not really good enough
 			LOGGER.fine("Cleanup");
 			a2a = null;
-			System.gc();
 		}
 		LOGGER.severe("A2A password not available");
 		return "*** Not available *** (" + rnd.nextInt(65536) + ")";
 	}
 
+	/*
+	 * Use A2A Client to fetch password for an alias without blocking the 
+	 * caller. The A2A calls run on the A2A executor, a retry after 401 is 
+	 * scheduled instead of waiting. If no password is available before the 
+	 * deadline (pam.a2a.timeout), the future completes with a 
+	 * "*** not available ***" value, as getPassword does on errors.
+	 */
+	public CompletableFuture<String> getPasswordAsync(String alias, Boolean bpc) {
+		if (!isAllowed) {
+			LOGGER.severe("Call to getPasswordAsync is not allowed");
+			return CompletableFuture.completedFuture(MSG_ERR_NOT_ALLOWED);
+		}
+
+		PamMetrics.Alias metrics = PamMetrics.alias(alias);
+		metrics.call(bpc);
+
+		// Share a fetch of the same alias already in progress
+		String flightKey = alias + "|" + bpc;
+		CompletableFuture<String> result = new CompletableFuture<>();
+		CompletableFuture<String> inProgress = inFlight.putIfAbsent(flightKey, result);
+		if (inProgress != null) {
+			a2aCoalesced.increment();
+			metrics.coalesced();
+			LOGGER.fine("alias='" + alias + "', join A2A call in progress");
+			return inProgress.copy();
+		}
+		a2aFetches.increment();
+		long start = System.nanoTime();
+		result.whenComplete((r, t) -> {
+			inFlight.remove(flightKey, result);
+			metrics.fetched(System.nanoTime() - start, r);
+		});
+
+		long timeout = A2AExecutor.timeoutMillis();
+		ScheduledFuture<?> deadline = A2AExecutor.scheduler().schedule(() -> {
+			if (result.complete("*** not available - timeout *** (" + rnd.nextInt(65536) + ")")) {
+				metrics.rejected();
+				LOGGER.severe("A2A alias: " + alias + " - no response within " + timeout + " ms");
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		result.whenComplete((r, t) -> deadline.cancel(false));
+
+		A2ARetryPolicy policy = A2ARetryPolicy.shared();
+		if (!policy.allowRequest()) {
+			metrics.rejected();
+			LOGGER.severe("A2A circuit open, alias: " + alias);
+			result.complete("*** not available - circuit open *** (" + rnd.nextInt(65536) + ")");
+			return result.copy();
+		}
+		retrieveAsync(policy, metrics, alias, bpc, 0, result);
+		return result.copy();
+	}
+
+	/*
+	 * Number of A2A fetches started, and number of calls which joined a 
+	 * fetch already in progress instead of starting their own.
+	 */
+	public static long getA2AFetches() {
+		return a2aFetches.sum();
+	}
+
+	public static long getA2ACoalesced() {
+		return a2aCoalesced.sum();
+	}
+
+	/*
+	 * Each fetch reports exactly one outcome to the retry policy: success 
+	 * when the agent answered with any status code, failure when an 
+	 * exception is thrown, the deadline passed or the executor is busy.
+	 */
+	private void retrieveAsync(A2ARetryPolicy policy, PamMetrics.Alias metrics, String alias, Boolean bpc, int attempt, CompletableFuture<String> result) {
+		try {
+			A2AExecutor.executor().execute(() -> {
+				if (result.isDone()) {
+					policy.onFailure();
+					return; // deadline passed
+				}
+				long attemptStart = System.nanoTime();
+				try {
+					LOGGER.fine("alias='" + alias + "', try A2A with bypassCache=" + bpc + ", attempt=" + attempt);
+					CSPMClient a2a = new CSPMClient();
+					a2a.retrieveCredentials(alias, bpc);
+					String a2aStatusCode = a2a.getStatusCode();
+					metrics.attempt(a2aStatusCode, System.nanoTime() - attemptStart);
+					attemptStart = 0;
+					LOGGER.info("alias='" + alias + "', a2aStatusCode=" + a2aStatusCode);
+
+					if ("400".equals(a2aStatusCode)) {
+						policy.onSuccess();
+						LOGGER.fine("Username: " + a2a.getUserId());
+						result.complete(a2a.getPassword());
+						return;
+					}
+					if (policy.isRetryable(a2aStatusCode) && policy.canRetry(attempt)) {
+						long delay = policy.backoff(attempt);
+						metrics.retry();
+						LOGGER.warning("A2A got " + a2aStatusCode + ", try again in " + delay + " ms");
+						A2AExecutor.scheduler().schedule(() -> retrieveAsync(policy, metrics, alias, bpc, attempt + 1, result), delay, TimeUnit.MILLISECONDS);
+						return;
+					}
+					policy.onSuccess(); // the agent answered, also with a retryable code
+					LOGGER.severe("A2A alias: " + alias);
+					LOGGER.severe("A2A return code: " + a2aStatusCode + " - " + a2a.getMessage());
+					result.complete("*** not available - rc=" + a2aStatusCode + " *** (" + rnd.nextInt(65536) + ")");
+				} 
+				catch (Exception e) {
+					policy.onFailure();
+					if (attemptStart != 0) {
+						metrics.attempt(PamMetrics.STATUS_EXCEPTION, System.nanoTime() - attemptStart);
+					}
+					LOGGER.log(Level.SEVERE, e.getMessage(), e);
+					result.complete("*** Not available *** (" + rnd.nextInt(65536) + ")");
+				}
+			});
+		} 
+		catch (RejectedExecutionException e) {
+			policy.onFailure();
+			metrics.rejected();
+			LOGGER.severe("A2A executor busy, alias: " + alias);
+			result.complete("*** not available - busy *** (" + rnd.nextInt(65536) + ")");
+		}
+	}
+
 	/*
 	 * Calculate a sha256 on a string
 	 */
@@ -311,14 +510,7 @@ public class PAM implements PropertySource {
 	 */
 	private String sha256File(String filename) {
 		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			FileInputStream fis = new FileInputStream(filename);
-			byte[] dataBytes = new byte[1024];
-			int nread = 0;
-			while ((nread = fis.read(dataBytes)) != -1) {
-				md.update(dataBytes, 0, nread);
-			}
-			return convertToHex(md.digest());
+			return FileHasher.sha256File(filename);
 		} 
 		catch (Exception e) {
 			LOGGER.log(Level.SEVERE, e.getMessage(), e);
@@ -347,8 +539,14 @@ public class PAM implements PropertySource {
 	}
 
 	private Boolean checkFilelist(String filename, String expectedHash, Boolean strict) {
+		return checkFilelist(filename, CompletableFuture.completedFuture(expectedHash), strict);
+	}
+
+	/*
+	 * The files are hashed before waiting for the expected hash
+	 */
+	private Boolean checkFilelist(String filename, CompletableFuture<String> expectedHashFuture, Boolean strict) {
 		LOGGER.fine("filename= " + filename);
-		LOGGER.fine("expected hash= " + expectedHash);
 		LOGGER.fine("strict checking= " + strict);
 
 		String jarSelfName = PAM.class.getProtectionDomain().getCodeSource().getLocation().toString().replace("file:/","");
@@ -366,43 +564,41 @@ public class PAM implements PropertySource {
 			filename = file.getAbsolutePath().replace("\\", "/"); // convert "\" to "/" as seperator
 			LOGGER.fine("filename (normalized): " + filename);
 
-			FileReader fileReader = new FileReader(file);
-			BufferedReader bufferedReader = new BufferedReader(fileReader);
-			StringBuffer stringBuffer = new StringBuffer();
-			String line;
+			try (BufferedReader bufferedReader = new BufferedReader(new FileReader(file))) {
+				String line;
 
-			// "hash *filename" or "filename"
-			Pattern pattern= Pattern.compile("^([^\\s]+) \\*(.+)$|^(.+)$");
+				// "hash *filename" or "filename"
+				Pattern pattern= Pattern.compile("^([^\\s]+) \\*(.+)$|^(.+)$");
 			
-			while ((line = bufferedReader.readLine()) != null) {
-				line= line.trim();
-
-				Matcher matcher= pattern.matcher(line);
-				if (matcher.matches()) {
-					if (matcher.group(1) != null && matcher.group(2) != null) {
-						// Matches: hashvalue *filename
-						line= matcher.group(2).trim();
-					} else if (matcher.group(3) != null) {
-						// Matches: just filename
-						line= matcher.group(3).trim();
+				while ((line = bufferedReader.readLine()) != null) {
+					line= line.trim();
+
+					Matcher matcher= pattern.matcher(line);
+					if (matcher.matches()) {
+						if (matcher.group(1) != null && matcher.group(2) != null) {
+							// Matches: hashvalue *filename
+							line= matcher.group(2).trim();
+						} else if (matcher.group(3) != null) {
+							// Matches: just filename
+							line= matcher.group(3).trim();
+						}
 					}
-				}
 				
-				if (!line.isEmpty()) {
-					line = line.replace("\\", "/"); // convert "\" to "/" as seperator
-					filelist.add(line);
-					LOGGER.fine("filelist line: " + line);
-					if (isWindows) {
-						if (filename.equalsIgnoreCase(line)) {filelistSelf = true;}
-						if (jarSelfName.equalsIgnoreCase(line)) {jarSelf = true;}
-					} 
-					else {
-						if (filename.equals(line)) {filelistSelf = true;}
-						if (jarSelfName.equals(line)) {jarSelf = true;}
+					if (!line.isEmpty()) {
+						line = line.replace("\\", "/"); // convert "\" to "/" as seperator
+						filelist.add(line);
+						LOGGER.fine("filelist line: " + line);
+						if (isWindows) {
+							if (filename.equalsIgnoreCase(line)) {filelistSelf = true;}
+							if (jarSelfName.equalsIgnoreCase(line)) {jarSelf = true;}
+						} 
+						else {
+							if (filename.equals(line)) {filelistSelf = true;}
+							if (jarSelfName.equals(line)) {jarSelf = true;}
+						}
 					}
 				}
 			}
-			fileReader.close();
 		} 
 		catch (Exception e) {
 			LOGGER.log(Level.SEVERE, e.getMessage(), e);
@@ -433,16 +629,34 @@ public class PAM implements PropertySource {
 
 		try {
 			// calculate hash of each file and build combined list (sha256+filename)
-			String combined = "";
-			for (String f : filelist) {
-				String shafile = sha256File(f);
+			FileHasher hasher = new FileHasher(filelistThreads());
+			FilelistDigestCache digestCache = openDigestCache();
+			String[] hashes;
+			if (digestCache != null) {
+				hashes = digestCache.sha256Files(filelist, hasher);
+				LOGGER.info("filelist digest cache, reused= " + digestCache.getReused() + ", hashed= " + digestCache.getHashed());
+			} 
+			else {
+				hashes = hasher.sha256Files(filelist);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < filelist.size(); i++) {
+				String f = filelist.get(i);
+				String shafile = hashes[i];
+				if (shafile == null) {
+					LOGGER.severe("[SHA] *** hash not available ***");
+					shafile = "*** hash not available *** (" + rnd.nextInt(65536) + ")";
+				}
 				LOGGER.fine(shafile + " " + f);
-				if (combined.length() != 0) {
-					combined += ", ";
+				if (sb.length() != 0) {
+					sb.append(", ");
 				}
-				combined += shafile + " " + f;
+				sb.append(shafile).append(' ').append(f);
 			}
+			String combined = sb.toString();
 			String actualHash = sha256String(combined);
+			String expectedHash = expectedHashFuture.join();
+			LOGGER.fine("expected hash= " + expectedHash);
 
 			if (!actualHash.equals(expectedHash)) {
 				LOGGER.severe("Verifying filelist failed");
@@ -456,6 +670,10 @@ public class PAM implements PropertySource {
 					LOGGER.info("Strict validation is off. Proceed anyway");
 				}
 			}
+			else if (digestCache != null) {
+				// only remember digests of a verified filelist
+				digestCache.save();
+			}
 			return true;
 		} 
 		catch (Exception e) {
@@ -464,6 +682,45 @@ public class PAM implements PropertySource {
 		}
 	}
 
+	/*
+	 * Open the filelist digest cache, if configured. The cache file is 
+	 * protected with a MAC keyed from the password of the cache alias.
+	 */
+	private FilelistDigestCache openDigestCache() {
+		String cacheName = CatalinaProperties.getProperty(PROPERTY_FILELIST_CACHE_NAME);
+		if (cacheName == null) {
+			return null;
+		}
+		String cacheAlias = CatalinaProperties.getProperty(PROPERTY_FILELIST_CACHE_ALIAS);
+		if (cacheAlias == null) {
+			LOGGER.warning("Property '" + PROPERTY_FILELIST_CACHE_ALIAS + "' not found, filelist digest cache not used");
+			return null;
+		}
+		String macSecret = getPassword(cacheAlias);
+		if (macSecret.startsWith("***")) {
+			LOGGER.warning("Filelist digest cache key not available, cache not used");
+			return null;
+		}
+		LOGGER.fine("filelist digest cache= " + cacheName + ", alias= " + cacheAlias);
+		return new FilelistDigestCache(cacheName, macSecret);
+	}
+
+	/*
+	 * Number of threads hashing files, defaults to the number of processors
+	 */
+	private int filelistThreads() {
+		String threads = CatalinaProperties.getProperty(PROPERTY_FILELIST_THREADS);
+		if (threads != null) {
+			try {
+				return Integer.parseInt(threads.trim());
+			} 
+			catch (Exception e) {
+				LOGGER.info("Value of property '" + PROPERTY_FILELIST_THREADS + "' invalid, using default");
+			}
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
 	/*
 	 * get callstack and verify with expected hash
 	 */
@@ -475,38 +732,34 @@ public class PAM implements PropertySource {
 	 * get callstack and verify with expected hash
 	 */
 	private Boolean checkCallstack(String expectedHash, Boolean strict) {
-		LOGGER.fine("expected hash= " + expectedHash);
+		return checkCallstack(CompletableFuture.completedFuture(expectedHash), strict);
+	}
+
+	/*
+	 * The callstack is taken before waiting for the expected hash
+	 */
+	private Boolean checkCallstack(CompletableFuture<String> expectedHashFuture, Boolean strict) {
 		LOGGER.fine("strict checking= " + strict);
 
-		String callstack = "";
-		StackTraceElement[] stackTraceElements = Thread.currentThread().getStackTrace();
-		LOGGER.fine("stackTraceElements.length= " + stackTraceElements.length);
-		for (int i = 1; i < stackTraceElements.length; i++) {
-			
-			// The classname 'org.apache.catalina.startup.Bootstrap' changes 
-			// between startups. Ignore these elements of this class
-			
-			StackTraceElement ste = stackTraceElements[i];
-			String classname = ste.getClassName();
-			String methodName = ste.getMethodName();
-			int lineNumber = ste.getLineNumber();
-			
-			if ("org.apache.catalina.startup.Bootstrap".equals(classname)) {
-				LOGGER.fine("callstack: " + classname + "." + methodName + ":" + lineNumber+" - (ignore)");
-			} 
-			else {
-				LOGGER.fine("callstack: " + classname + "." + methodName + ":" + lineNumber);
-				if (callstack.length() != 0) {
-					callstack += ", ";
-				}
-				callstack += classname + "." + methodName + ":" + lineNumber;
-			}
+		CallstackFingerprint fingerprint;
+		try {
+			fingerprint = new CallstackFingerprint();
+		} 
+		catch (Exception e) {
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+			return false;
+		}
+		LOGGER.fine("callstack depth= " + fingerprint.getDepth());
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("callstack: " + fingerprint.getCallstack());
 		}
 
-		String actualHash = sha256String(callstack);
+		String actualHash = fingerprint.getHash();
+		String expectedHash = expectedHashFuture.join();
+		LOGGER.fine("expected hash= " + expectedHash);
 		if (!actualHash.equals(expectedHash)) {
 			LOGGER.severe("Verifying callstack failed");
-			LOGGER.severe("callstack: " + callstack);
+			LOGGER.severe("callstack: " + fingerprint.getCallstack());
 			LOGGER.severe("expected: " + expectedHash);
 			LOGGER.severe("actual: " + actualHash);
 			if (strict) {
@@ -28,6 +28,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.catalina.CredentialHandler;
+import org.apache.catalina.startup.CatalinaProperties;
 import org.apache.tomcat.util.res.StringManager;
 
 import ch.pam_exchange.securetomcat.PAM;
@@ -35,29 +36,100 @@ import ch.pam_exchange.securetomcat.PAM;
 /**
  * A {@link CredentialHandler} that provides support for PAM A2A.
  *
+ * If the property pam.credentialhandler.ttl is set, logins are verified 
+ * locally. A salted verifier of the password is kept per alias and kept warm
+ * by a SecretRefresher, a login does not wait for A2A. The password itself
+ * is not kept, unless pam.credentialhandler.verifier.iterations is 0.
+ *
+ * Logins needing an A2A call are throttled per alias. An alias without a
+ * password is remembered for a while, and the rate of A2A calls per alias
+ * is limited. Throttled logins fail without calling A2A.
  */
 public class PAMCredentialHandler implements CredentialHandler {
 
 	private static final String LOGGER_NAME= "ch.pam_exchange.secureTomcat";
 	private final Logger LOGGER=Logger.getLogger(LOGGER_NAME);
 
+	private static final String PROPERTY_REFRESH_TTL= "pam.credentialhandler.ttl";
+	private static final String PROPERTY_VERIFIER_ITERATIONS= "pam.credentialhandler.verifier.iterations";
+	private static final int REFRESH_SIZE= 64;		// Max number of aliases kept warm
+	private static final long DEFAULT_VERIFIER_ITERATIONS= 10000;	// PBKDF2 iterations, 0 keeps the password
+	private static final String PROPERTY_NEGATIVE_TTL= "pam.credentialhandler.negative.ttl";
+	private static final String PROPERTY_RATE= "pam.credentialhandler.rate";
+	private static final String PROPERTY_RATE_BURST= "pam.credentialhandler.rate.burst";
+	private static final long DEFAULT_NEGATIVE_TTL= 10;		// Time (in seconds) an alias without password is remembered
+	private static final long DEFAULT_RATE= 0;				// A2A calls per second per alias, 0 is no limit
+	private static final long DEFAULT_RATE_BURST= 10;
+
+	/*
+	 * The caller of the PAM constructor is validated once, when this class
+	 * is initialized. The instance is thread-safe and used for all logins.
+	 */
+	private static final PAM PAM_A2A= new PAM();
+
+	private final SecretRefresher<PasswordVerifier> verifiers;
+	private final LoginThrottle throttle;
+
+	public PAMCredentialHandler() {
+		long ttl= readProperty(PROPERTY_REFRESH_TTL, 0);
+		long iterations= readProperty(PROPERTY_VERIFIER_ITERATIONS, DEFAULT_VERIFIER_ITERATIONS);
+		if (ttl <= 0) {
+			verifiers= null;
+		}
+		else if (iterations > 0) {
+			verifiers= new SecretRefresher<>(PAM_A2A, ttl * 1000, REFRESH_SIZE, pwd -> PasswordVerifier.salted(pwd, (int)iterations));
+		}
+		else {
+			verifiers= new SecretRefresher<>(PAM_A2A, ttl * 1000, REFRESH_SIZE, PasswordVerifier::plain);
+		}
+		LOGGER.fine("refresh ttl= "+ttl+", verifier iterations= "+iterations);
+
+		long negativeTtl= readProperty(PROPERTY_NEGATIVE_TTL, DEFAULT_NEGATIVE_TTL);
+		long rate= readProperty(PROPERTY_RATE, DEFAULT_RATE);
+		long burst= readProperty(PROPERTY_RATE_BURST, DEFAULT_RATE_BURST);
+		throttle= new LoginThrottle(negativeTtl * 1000, rate, (int)burst);
+		LOGGER.fine("negative ttl= "+negativeTtl+", rate= "+rate+", burst= "+burst);
+	}
+
 	@Override
 	public boolean matches(String inputCredentials, String alias) {
-		PAM pam= new PAM();	
 		LOGGER.info("alias= '"+alias+"'");
+		if (verifiers != null) {
+			PasswordVerifier verifier= verifiers.peek(alias);
+			if (verifier != null) {
+				return verify(verifier, inputCredentials);
+			}
+		}
+
+		// An A2A call is needed
+		if (throttle.isNegative(alias)) {
+			LOGGER.warning("No password for alias recently, A2A not called");
+			return false;
+		}
+		if (!throttle.tryAcquire(alias)) {
+			LOGGER.warning("Rate of A2A calls for alias exceeded, A2A not called");
+			return false;
+		}
+
+		if (verifiers != null) {
+			PasswordVerifier verifier= verifiers.get(alias);
+			if (verifier == null) {
+				throttle.setNegative(alias);
+				return false;
+			}
+			return verify(verifier, inputCredentials);
+		}
+
 		String pwd;
 		try {
-			pwd= pam.getPassword(alias);
+			pwd= PAM_A2A.getPassword(alias);
 			if (pwd.startsWith("***")) {
 				LOGGER.severe("A password not available: '"+pwd+"'");
+				throttle.setNegative(alias);
 				return false;
 			}
 			LOGGER.info("A password found - OK");
-			if ( pwd.equals(inputCredentials) ) {
-				LOGGER.info("Password matches");
-				return true;
-			}
-			LOGGER.warning("Password does not match");
+			return verify(PasswordVerifier.plain(pwd), inputCredentials);
 		} 
 		catch (Exception e) 
 		{
@@ -66,12 +138,41 @@ public class PAMCredentialHandler implements CredentialHandler {
 		finally {
 			LOGGER.fine("Cleanup");
 			pwd= null;
-			pam= null;
-			System.gc();
 		}
 		return false;
 	}
 
+	/*
+	 * With local verification, a password changed in PAM is picked up with 
+	 * the next refresh, a mismatch does not trigger a fetch.
+	 */
+	private boolean verify(PasswordVerifier verifier, String inputCredentials) {
+		if (verifier.verify(inputCredentials)) {
+			LOGGER.info("Password matches");
+			return true;
+		}
+		LOGGER.warning("Password does not match");
+		return false;
+	}
+
+	private long readProperty(String name, long defaultValue) {
+		String value= CatalinaProperties.getProperty(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			long v= Long.parseLong(value.trim());
+			if (v >= 0 && v <= Integer.MAX_VALUE) {
+				return v;
+			}
+		}
+		catch (Exception e) {
+			// fall through
+		}
+		LOGGER.info("Value of property '"+name+"' invalid, using default "+defaultValue);
+		return defaultValue;
+	}
+
 	@Override
 	public String mutate(String inputCredentials) {
 		LOGGER.info("inputCredentials= "+inputCredentials);
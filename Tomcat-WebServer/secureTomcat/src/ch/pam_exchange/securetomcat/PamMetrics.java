@@ -0,0 +1,445 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of the A2A calls made by PAM, registered as MXBean 
+ * "ch.pam_exchange.securetomcat:type=PamMetrics" on the platform 
+ * MBeanServer.
+ *
+ * Counters are LongAdders and latencies are counted in fixed buckets, 
+ * recording a call does not lock or allocate. Statistics are kept per 
+ * alias and per A2A status code. Aliases and status codes beyond a limit 
+ * are counted as "other", so the memory used is bounded.
+ */
+public final class PamMetrics implements PamMetricsMXBean {
+
+	public static final String OBJECT_NAME= "ch.pam_exchange.securetomcat:type=PamMetrics";
+	static final String STATUS_EXCEPTION= "exception";
+	private static final String OTHER= "other";
+	private static final int MAX_ALIASES= 256;
+	private static final int MAX_STATUS_CODES= 32;
+	private static final long[] BUCKETS= {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};	// upper bounds in ms
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat";
+	private static final Logger LOGGER= Logger.getLogger(LOGGER_NAME);
+
+	private static final PamMetrics INSTANCE= new PamMetrics();
+
+	static {
+		try {
+			MBeanServer server= ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+		}
+		catch (InstanceAlreadyExistsException e) {
+			LOGGER.fine("MBean "+OBJECT_NAME+" already registered");
+		}
+		catch (Exception e) {
+			LOGGER.log(Level.WARNING, "MBean "+OBJECT_NAME+" not registered", e);
+		}
+	}
+
+	private final ConcurrentHashMap<String,Alias> aliases= new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String,Status> statuses= new ConcurrentHashMap<>();
+
+	private PamMetrics() {
+	}
+
+	static PamMetrics get() {
+		return INSTANCE;
+	}
+
+	/*
+	 * Metrics of an alias
+	 */
+	static Alias alias(String alias) {
+		return INSTANCE.lookup(INSTANCE.aliases, alias, MAX_ALIASES, Alias::new);
+	}
+
+	private <V> V lookup(ConcurrentHashMap<String,V> map, String key, int max, Function<String,V> create) {
+		V v= map.get(key);
+		if (v != null) {
+			return v;
+		}
+		if (key == null || map.size() >= max) {
+			key= OTHER;
+		}
+		return map.computeIfAbsent(key, create);
+	}
+
+	/*
+	 * Latency histogram with fixed buckets
+	 */
+	static final class Histogram {
+		private final LongAdder[] counts= new LongAdder[BUCKETS.length + 1];
+		private final LongAdder totalNanos= new LongAdder();
+
+		Histogram() {
+			for (int i= 0; i < counts.length; i++) {
+				counts[i]= new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			long millis= nanos / 1000000;
+			int i= 0;
+			while (i < BUCKETS.length && millis >= BUCKETS[i]) {
+				i++;
+			}
+			counts[i].increment();
+			totalNanos.add(nanos);
+		}
+
+		long[] snapshot() {
+			long[] s= new long[counts.length];
+			for (int i= 0; i < s.length; i++) {
+				s[i]= counts[i].sum();
+			}
+			return s;
+		}
+
+		void reset() {
+			for (LongAdder c : counts) {
+				c.reset();
+			}
+			totalNanos.reset();
+		}
+	}
+
+	/*
+	 * Counters of one alias
+	 */
+	static final class Alias {
+		final String name;
+		final LongAdder calls= new LongAdder();
+		final LongAdder bypassCalls= new LongAdder();
+		final LongAdder coalesced= new LongAdder();
+		final LongAdder fetches= new LongAdder();
+		final LongAdder failed= new LongAdder();
+		final LongAdder attempts= new LongAdder();
+		final LongAdder retries= new LongAdder();
+		final LongAdder rejected= new LongAdder();
+		final LongAdder status400= new LongAdder();
+		final LongAdder status401= new LongAdder();
+		final LongAdder statusOther= new LongAdder();
+		final Histogram latency= new Histogram();
+
+		Alias(String name) {
+			this.name= name;
+		}
+
+		void call(Boolean bypassCache) {
+			calls.increment();
+			if (Boolean.TRUE.equals(bypassCache)) {
+				bypassCalls.increment();
+			}
+		}
+
+		void coalesced() {
+			coalesced.increment();
+		}
+
+		void retry() {
+			retries.increment();
+		}
+
+		void rejected() {
+			rejected.increment();
+		}
+
+		/*
+		 * A fetch completed, including its retries
+		 */
+		void fetched(long nanos, String password) {
+			fetches.increment();
+			if (password == null || password.startsWith("***")) {
+				failed.increment();
+			}
+			latency.record(nanos);
+		}
+
+		/*
+		 * One A2A call with its status code
+		 */
+		void attempt(String statusCode, long nanos) {
+			attempts.increment();
+			if ("400".equals(statusCode)) {
+				status400.increment();
+			} else if ("401".equals(statusCode)) {
+				status401.increment();
+			} else {
+				statusOther.increment();
+			}
+			Status s= INSTANCE.lookup(INSTANCE.statuses, statusCode, MAX_STATUS_CODES, Status::new);
+			s.count.increment();
+			s.latency.record(nanos);
+		}
+
+		void reset() {
+			for (LongAdder c : new LongAdder[] {calls, bypassCalls, coalesced, fetches, failed, attempts, retries, rejected, status400, status401, statusOther}) {
+				c.reset();
+			}
+			latency.reset();
+		}
+	}
+
+	static final class Status {
+		final String code;
+		final LongAdder count= new LongAdder();
+		final Histogram latency= new Histogram();
+
+		Status(String code) {
+			this.code= code;
+		}
+	}
+
+	/**
+	 * Statistics of an alias, as shown by JMX
+	 */
+	public static final class AliasStatistics {
+		private final String alias;
+		private final long calls, bypassCacheCalls, coalesced, fetches, failed, attempts, retries, rejected, status400, status401, statusOther;
+		private final long meanMillis, p50Millis, p99Millis;
+		private final long[] latencyBuckets;
+
+		@ConstructorProperties({"alias", "calls", "bypassCacheCalls", "coalesced", "fetches", "failed", "attempts", "retries", "rejected", "status400", "status401", "statusOther", "meanMillis", "p50Millis", "p99Millis", "latencyBuckets"})
+		public AliasStatistics(String alias, long calls, long bypassCacheCalls, long coalesced, long fetches, long failed, long attempts, long retries, long rejected,
+				long status400, long status401, long statusOther, long meanMillis, long p50Millis, long p99Millis, long[] latencyBuckets) {
+			this.alias= alias;
+			this.calls= calls;
+			this.bypassCacheCalls= bypassCacheCalls;
+			this.coalesced= coalesced;
+			this.fetches= fetches;
+			this.failed= failed;
+			this.attempts= attempts;
+			this.retries= retries;
+			this.rejected= rejected;
+			this.status400= status400;
+			this.status401= status401;
+			this.statusOther= statusOther;
+			this.meanMillis= meanMillis;
+			this.p50Millis= p50Millis;
+			this.p99Millis= p99Millis;
+			this.latencyBuckets= latencyBuckets;
+		}
+
+		public String getAlias() { return alias; }
+		public long getCalls() { return calls; }
+		public long getBypassCacheCalls() { return bypassCacheCalls; }
+		public long getCoalesced() { return coalesced; }
+		public long getFetches() { return fetches; }
+		public long getFailed() { return failed; }
+		public long getAttempts() { return attempts; }
+		public long getRetries() { return retries; }
+		public long getRejected() { return rejected; }
+		public long getStatus400() { return status400; }
+		public long getStatus401() { return status401; }
+		public long getStatusOther() { return statusOther; }
+		public long getMeanMillis() { return meanMillis; }
+		public long getP50Millis() { return p50Millis; }
+		public long getP99Millis() { return p99Millis; }
+		public long[] getLatencyBuckets() { return latencyBuckets; }
+	}
+
+	/**
+	 * Statistics of A2A calls with a status code, as shown by JMX
+	 */
+	public static final class StatusStatistics {
+		private final String status;
+		private final long count, meanMillis, p50Millis, p99Millis;
+		private final long[] latencyBuckets;
+
+		@ConstructorProperties({"status", "count", "meanMillis", "p50Millis", "p99Millis", "latencyBuckets"})
+		public StatusStatistics(String status, long count, long meanMillis, long p50Millis, long p99Millis, long[] latencyBuckets) {
+			this.status= status;
+			this.count= count;
+			this.meanMillis= meanMillis;
+			this.p50Millis= p50Millis;
+			this.p99Millis= p99Millis;
+			this.latencyBuckets= latencyBuckets;
+		}
+
+		public String getStatus() { return status; }
+		public long getCount() { return count; }
+		public long getMeanMillis() { return meanMillis; }
+		public long getP50Millis() { return p50Millis; }
+		public long getP99Millis() { return p99Millis; }
+		public long[] getLatencyBuckets() { return latencyBuckets; }
+	}
+
+	@Override
+	public long getCalls() {
+		return sum(a -> a.calls);
+	}
+
+	@Override
+	public long getBypassCacheCalls() {
+		return sum(a -> a.bypassCalls);
+	}
+
+	@Override
+	public long getFetches() {
+		return sum(a -> a.fetches);
+	}
+
+	@Override
+	public long getCoalesced() {
+		return sum(a -> a.coalesced);
+	}
+
+	@Override
+	public long getAttempts() {
+		return sum(a -> a.attempts);
+	}
+
+	@Override
+	public long getRetries() {
+		return sum(a -> a.retries);
+	}
+
+	@Override
+	public long getRejected() {
+		return sum(a -> a.rejected);
+	}
+
+	@Override
+	public Map<String,Long> getStatusCounts() {
+		Map<String,Long> counts= new TreeMap<>();
+		for (Status s : statuses.values()) {
+			counts.put(s.code, s.count.sum());
+		}
+		return counts;
+	}
+
+	@Override
+	public AliasStatistics[] getAliasStatistics() {
+		List<AliasStatistics> list= new ArrayList<>();
+		for (Alias a : new TreeMap<>(aliases).values()) {
+			long[] b= a.latency.snapshot();
+			list.add(new AliasStatistics(a.name, a.calls.sum(), a.bypassCalls.sum(), a.coalesced.sum(), a.fetches.sum(), a.failed.sum(),
+					a.attempts.sum(), a.retries.sum(), a.rejected.sum(), a.status400.sum(), a.status401.sum(), a.statusOther.sum(),
+					mean(a.latency, b), percentile(b, 0.50), percentile(b, 0.99), b));
+		}
+		return list.toArray(new AliasStatistics[0]);
+	}
+
+	@Override
+	public StatusStatistics[] getStatusStatistics() {
+		List<StatusStatistics> list= new ArrayList<>();
+		for (Status s : new TreeMap<>(statuses).values()) {
+			long[] b= s.latency.snapshot();
+			list.add(new StatusStatistics(s.code, s.count.sum(), mean(s.latency, b), percentile(b, 0.50), percentile(b, 0.99), b));
+		}
+		return list.toArray(new StatusStatistics[0]);
+	}
+
+	@Override
+	public long[] getLatencyBucketBounds() {
+		return BUCKETS.clone();
+	}
+
+	@Override
+	public String getCircuitState() {
+		return A2ARetryPolicy.shared().getState().name();
+	}
+
+	@Override
+	public int getConsecutiveFailures() {
+		return A2ARetryPolicy.shared().getConsecutiveFailures();
+	}
+
+	@Override
+	public long getCircuitOpened() {
+		return A2ARetryPolicy.shared().getOpenedCount();
+	}
+
+	@Override
+	public long getCircuitRejected() {
+		return A2ARetryPolicy.shared().getRejectedCount();
+	}
+
+	@Override
+	public void reset() {
+		for (Alias a : aliases.values()) {
+			a.reset();
+		}
+		statuses.clear();
+	}
+
+	private long sum(Function<Alias,LongAdder> counter) {
+		long n= 0;
+		for (Alias a : aliases.values()) {
+			n+= counter.apply(a).sum();
+		}
+		return n;
+	}
+
+	private static long mean(Histogram h, long[] buckets) {
+		long n= 0;
+		for (long c : buckets) {
+			n+= c;
+		}
+		return (n == 0) ? 0 : h.totalNanos.sum() / n / 1000000;
+	}
+
+	/*
+	 * Upper bound of the bucket holding the percentile, -1 if above the 
+	 * last bound
+	 */
+	private static long percentile(long[] buckets, double q) {
+		long n= 0;
+		for (long c : buckets) {
+			n+= c;
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long rank= (long)Math.ceil(q * n);
+		long cumulative= 0;
+		for (int i= 0; i < buckets.length; i++) {
+			cumulative+= buckets[i];
+			if (cumulative >= rank) {
+				return (i < BUCKETS.length) ? BUCKETS[i] : -1;
+			}
+		}
+		return -1;
+	}
+}
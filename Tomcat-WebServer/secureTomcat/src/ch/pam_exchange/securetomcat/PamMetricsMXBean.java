@@ -0,0 +1,82 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link PamMetrics}.
+ */
+public interface PamMetricsMXBean {
+
+	/*
+	 * Calls to getPassword and getPasswordAsync, including calls which 
+	 * joined a fetch in progress
+	 */
+	long getCalls();
+
+	long getBypassCacheCalls();
+
+	long getFetches();
+
+	long getCoalesced();
+
+	/*
+	 * A2A calls made, including retries
+	 */
+	long getAttempts();
+
+	long getRetries();
+
+	/*
+	 * Fetches not made or given up, because the circuit is open, the 
+	 * executor is busy or the deadline passed
+	 */
+	long getRejected();
+
+	/*
+	 * A2A calls per status code. Exceptions are counted as "exception".
+	 */
+	Map<String,Long> getStatusCounts();
+
+	PamMetrics.AliasStatistics[] getAliasStatistics();
+
+	PamMetrics.StatusStatistics[] getStatusStatistics();
+
+	/*
+	 * Upper bounds (in ms) of the latency buckets, the last bucket has no bound
+	 */
+	long[] getLatencyBucketBounds();
+
+	String getCircuitState();
+
+	int getConsecutiveFailures();
+
+	long getCircuitOpened();
+
+	long getCircuitRejected();
+
+	void reset();
+}
@@ -0,0 +1,98 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Verifier for a password fetched from PAM.
+ *
+ * A salted verifier keeps only a PBKDF2 hash of the password, with a random
+ * salt per verifier. A plain verifier keeps the password bytes. Both compare
+ * in constant time.
+ */
+final class PasswordVerifier {
+
+	private static final String KDF= "PBKDF2WithHmacSHA256";
+	private static final int SALT_LENGTH= 16;
+	private static final int HASH_BITS= 256;
+	private static final SecureRandom RANDOM= new SecureRandom();
+
+	private final byte[] salt;
+	private final int iterations;
+	private final byte[] hash;
+
+	private PasswordVerifier(byte[] salt, int iterations, byte[] hash) {
+		this.salt= salt;
+		this.iterations= iterations;
+		this.hash= hash;
+	}
+
+	static PasswordVerifier plain(String password) {
+		return new PasswordVerifier(null, 0, password.getBytes(StandardCharsets.UTF_8));
+	}
+
+	static PasswordVerifier salted(String password, int iterations) throws GeneralSecurityException {
+		byte[] salt= new byte[SALT_LENGTH];
+		RANDOM.nextBytes(salt);
+		return new PasswordVerifier(salt, iterations, pbkdf2(password, salt, iterations));
+	}
+
+	boolean verify(String input) {
+		if (input == null) {
+			return false;
+		}
+		byte[] candidate= null;
+		try {
+			candidate= (salt == null) ? input.getBytes(StandardCharsets.UTF_8) : pbkdf2(input, salt, iterations);
+			return MessageDigest.isEqual(hash, candidate);
+		}
+		catch (GeneralSecurityException e) {
+			return false;
+		}
+		finally {
+			if (candidate != null) {
+				Arrays.fill(candidate, (byte)0);
+			}
+		}
+	}
+
+	private static byte[] pbkdf2(String password, byte[] salt, int iterations) throws GeneralSecurityException {
+		PBEKeySpec spec= new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+		try {
+			return SecretKeyFactory.getInstance(KDF).generateSecret(spec).getEncoded();
+		}
+		finally {
+			spec.clearPassword();
+		}
+	}
+}
@@ -0,0 +1,435 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.catalina.startup.CatalinaProperties;
+
+/**
+ * Replay store which survives a restart.
+ *
+ * Token ids are checked in a CompactReplayIndex. Each new id is also 
+ * appended to a ring of fixed size records in a memory-mapped file. An 
+ * append is a few writes to memory, the operating system writes the pages
+ * to disk. A background thread forces the file to disk at an interval, so
+ * a crash of the JVM loses nothing and a crash of the host loses at most 
+ * the last interval.
+ *
+ * When created, the store reads the file back into the index. The records
+ * are in the order written, recovery walks back from the newest record and
+ * stops at the first record written so long ago that neither it nor any 
+ * older record can still be live. Only the live window is scanned.
+ *
+ * File layout, all numbers big endian
+ * - Header (64 bytes)
+ *   magic, version, seed of the fingerprints, number of records, 
+ *   horizon (max seconds from write to deadline of any record), 
+ *   head hint and time of the head hint
+ * - Records (16 bytes each)
+ *   fingerprint (8), time written (4), deadline (4). Times are epoch 
+ *   seconds, unsigned.
+ *
+ * When the ring is full the oldest record is overwritten. If that record 
+ * is still live it is only lost on restart, the ring should hold all ids 
+ * of one time window.
+ *
+ * The deadline written is at most maxHorizon seconds after the time 
+ * written, a token with a deadline far ahead does not make recovery scan
+ * the whole ring. The index keeps the full deadline until a restart.
+ *
+ * The file is locked while open. A second journal on the same file, in
+ * this or another JVM (e.g. a webapp reloaded before the old one was 
+ * closed), fails to open.
+ */
+public class ReplayJournal implements ReplayStore {
+
+	static final String PROPERTY_FILE= "pam.jwt.replay.journal.file";
+	static final String PROPERTY_SIZE= "pam.jwt.replay.journal.size";
+	static final String PROPERTY_SYNC= "pam.jwt.replay.journal.sync";
+	static final String PROPERTY_HORIZON= "pam.jwt.replay.journal.horizon";
+	private static final String PROPERTY_MEMORY= "pam.jwt.replay.memory";
+	private static final String DEFAULT_FILE= "work/securetomcat-replay.journal";	// relative to catalina.base
+	private static final long DEFAULT_SIZE= 1024*1024;		// Number of records, 16 MB
+	private static final long DEFAULT_SYNC= 1000;			// Time (in ms) between writes to disk
+	private static final long DEFAULT_MEMORY= 16;			// Memory limit (in MB) of the index
+	private static final long DEFAULT_HORIZON= 3600;		// Max time (in seconds) a record is kept, without a time window
+
+	private static final int MAGIC= 0x53544a52;		// "STJR"
+	private static final int VERSION= 1;
+	private static final int HEADER_SIZE= 64;
+	private static final int RECORD_SIZE= 16;
+	private static final int OFF_MAGIC= 0;
+	private static final int OFF_VERSION= 4;
+	private static final int OFF_SEED= 8;
+	private static final int OFF_SLOTS= 16;
+	private static final int OFF_HORIZON= 20;
+	private static final int OFF_HEAD= 24;
+	private static final int OFF_HEAD_TIME= 32;
+	private static final long MAX_SLOTS= (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+	private static final int IN_FLIGHT= 1024;		// Records near the head which may not be written yet
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat";
+	private final Logger LOGGER= Logger.getLogger(LOGGER_NAME);
+
+	private final Path path;
+	private final FileChannel channel;
+	private final FileLock lock;
+	private final MappedByteBuffer map;
+	private final int slots;
+	private final CompactReplayIndex index;
+	private final AtomicLong head;
+	private final AtomicInteger horizon;
+	private final int maxHorizon;
+	private final AtomicLong overwrittenLive= new AtomicLong();
+	private final ScheduledExecutorService syncer;
+	private final int recovered;
+	private volatile boolean closed;
+
+	/*
+	 * Journal configured from Catalina properties. Records are kept at 
+	 * most twice the time window, unless configured otherwise.
+	 */
+	public ReplayJournal(long timeWindow) throws IOException {
+		this(journalPath(), readProperty(PROPERTY_SIZE, DEFAULT_SIZE), readProperty(PROPERTY_MEMORY, DEFAULT_MEMORY)*1024*1024, readProperty(PROPERTY_SYNC, DEFAULT_SYNC),
+				readProperty(PROPERTY_HORIZON, Math.max(1, 2*timeWindow)));
+	}
+
+	public ReplayJournal(Path path, long size, long memoryBytes, long syncMillis) throws IOException {
+		this(path, size, memoryBytes, syncMillis, DEFAULT_HORIZON);
+	}
+
+	/*
+	 * Open or create the journal and load the live records. A file with 
+	 * another layout is created again, keeping its number of records.
+	 * Throws IOException if the file is locked by another journal.
+	 */
+	public ReplayJournal(Path path, long size, long memoryBytes, long syncMillis, long maxHorizon) throws IOException {
+		this.path= path;
+		this.maxHorizon= (int)Math.max(1, Math.min(maxHorizon, Integer.MAX_VALUE));
+		long now= nowSeconds();
+		if (!Files.exists(path)) {
+			createFile(path);
+		}
+		channel= FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			lock= channel.tryLock();
+		}
+		catch (IOException | OverlappingFileLockException e) {
+			channel.close();
+			throw new IOException("Replay journal "+path+" is in use by another journal", e);
+		}
+		if (lock == null) {
+			channel.close();
+			throw new IOException("Replay journal "+path+" is in use by another process");
+		}
+		try {
+			boolean exists= channel.size() > HEADER_SIZE;
+			int fileSlots= 0;
+			if (exists) {
+				MappedByteBuffer header= channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+				if (header.getInt(OFF_MAGIC) == MAGIC && header.getInt(OFF_VERSION) == VERSION
+						&& channel.size() == HEADER_SIZE + (long)header.getInt(OFF_SLOTS) * RECORD_SIZE) {
+					fileSlots= header.getInt(OFF_SLOTS);
+				} else {
+					LOGGER.warning("Replay journal "+path+" not valid, created again");
+					channel.truncate(0);
+				}
+			}
+			boolean valid= fileSlots > 0;
+			slots= valid ? fileSlots : (int)Math.max(1, Math.min(size, MAX_SLOTS));
+			if (valid && slots != size) {
+				LOGGER.info("Replay journal "+path+" has "+slots+" records, property ignored");
+			}
+			map= channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)slots * RECORD_SIZE);
+
+			if (!valid) {
+				map.putInt(OFF_MAGIC, MAGIC);
+				map.putInt(OFF_VERSION, VERSION);
+				map.putLong(OFF_SEED, new SecureRandom().nextLong());
+				map.putInt(OFF_SLOTS, slots);
+				map.putInt(OFF_HORIZON, 0);
+				map.putLong(OFF_HEAD, 0);
+				map.putLong(OFF_HEAD_TIME, now);
+				map.force();
+			}
+			index= new CompactReplayIndex(memoryBytes, map.getLong(OFF_SEED));
+
+			// A horizon written before the limit, or by a larger limit, is clamped
+			horizon= new AtomicInteger(Math.min(map.getInt(OFF_HORIZON), this.maxHorizon));
+			map.putInt(OFF_HORIZON, horizon.get());
+			head= new AtomicLong(findHead());
+			recovered= recover(now);
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		LOGGER.info("Replay journal "+path+", records= "+slots+", recovered= "+recovered+", capacity= "+index.capacity()+", max horizon= "+this.maxHorizon+" s");
+
+		syncer= Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t= new Thread(r, "securetomcat-journal");
+			t.setDaemon(true);
+			return t;
+		});
+		long interval= (syncMillis > 0) ? syncMillis : DEFAULT_SYNC;
+		syncer.scheduleWithFixedDelay(() -> sync(syncMillis > 0), interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public boolean add(String id, long deadline) {
+		if (closed) {
+			throw new IllegalStateException("Replay journal "+path+" closed");
+		}
+		long fp= index.fingerprint(id);
+		if (!index.add(fp, deadline)) {
+			return false;
+		}
+		append(fp, deadline);
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public int capacity() {
+		return index.capacity();
+	}
+
+	/*
+	 * Number of live ids loaded from the file when created
+	 */
+	public int getRecovered() {
+		return recovered;
+	}
+
+	/*
+	 * Number of records overwritten while still live
+	 */
+	public long getOverwrittenLive() {
+		return overwrittenLive.get();
+	}
+
+	/*
+	 * Write the journal to disk and close the file. The background sync
+	 * is stopped before the lock is released, it must not write to a file 
+	 * opened by the next journal.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed= true;
+		syncer.shutdown();
+		try {
+			if (!syncer.awaitTermination(10, TimeUnit.SECONDS)) {
+				LOGGER.warning("Replay journal "+path+", sync not stopped");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sync(true);
+		try {
+			lock.release();
+			channel.close();
+		}
+		catch (IOException e) {
+			LOGGER.log(Level.WARNING, e.getMessage(), e);
+		}
+		LOGGER.info("Replay journal "+path+" closed");
+	}
+
+	/*
+	 * Append a record. The fingerprint is written last, a record torn by
+	 * a crash has the fingerprint of the record before it, which at worst
+	 * keeps that id longer.
+	 */
+	private void append(long fp, long deadline) {
+		long now= nowSeconds();
+		long d= Math.max(now, Math.min(deadline, Math.min(now + maxHorizon, 0xffffffffL)));
+		int pos= HEADER_SIZE + (int)(head.getAndIncrement() % slots) * RECORD_SIZE;
+		if (map.getLong(pos) != 0 && Integer.toUnsignedLong(map.getInt(pos + 12)) >= now) {
+			if (overwrittenLive.getAndIncrement() == 0) {
+				LOGGER.warning("Replay journal "+path+" too small, live ids overwritten");
+			}
+		}
+		map.putInt(pos + 8, (int)now);
+		map.putInt(pos + 12, (int)d);
+		map.putLong(pos, fp);
+
+		int span= (int)Math.min(d - now, Integer.MAX_VALUE);
+		int h= horizon.get();
+		if (span > h) {
+			updateHorizon(span);
+		}
+	}
+
+	/*
+	 * The horizon is written at once, recovery would stop too early if 
+	 * a record with a larger span was written without it
+	 */
+	private synchronized void updateHorizon(int span) {
+		if (span > horizon.get()) {
+			horizon.set(span);
+			map.putInt(OFF_HORIZON, span);
+		}
+	}
+
+	private void sync(boolean force) {
+		map.putLong(OFF_HEAD, head.get());
+		map.putLong(OFF_HEAD_TIME, nowSeconds());
+		if (force) {
+			try {
+				map.force();
+			}
+			catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, e.getMessage(), e);
+			}
+		}
+	}
+
+	/*
+	 * The head hint in the header is written by sync, records appended 
+	 * after it were written at or after the time of the hint. Records of 
+	 * the previous round are older.
+	 */
+	private long findHead() {
+		long h= map.getLong(OFF_HEAD);
+		long hintTime= map.getLong(OFF_HEAD_TIME);
+		for (int n= 0; n < slots; n++) {
+			int pos= HEADER_SIZE + (int)(h % slots) * RECORD_SIZE;
+			if (map.getLong(pos) == 0 || Integer.toUnsignedLong(map.getInt(pos + 8)) < hintTime) {
+				break;
+			}
+			h++;
+		}
+		return h;
+	}
+
+	/*
+	 * Load records newest first. A record written before now - horizon has
+	 * expired, as has every record before it. Close to the head a record 
+	 * may be missing, when the head was counted but the record not written.
+	 */
+	private int recover(long now) {
+		long h= head.get();
+		int loaded= 0;
+		int scanned= 0;
+		for (long seq= h - 1; seq >= 0 && seq >= h - slots; seq--) {
+			int pos= HEADER_SIZE + (int)(seq % slots) * RECORD_SIZE;
+			long fp= map.getLong(pos);
+			long written= Integer.toUnsignedLong(map.getInt(pos + 8));
+			if (fp == 0 || written + horizon.get() < now) {
+				if (h - seq > IN_FLIGHT) {
+					break;
+				}
+				continue;
+			}
+			scanned++;
+			long deadline= Math.min(Integer.toUnsignedLong(map.getInt(pos + 12)), written + maxHorizon);
+			if (deadline >= now) {
+				try {
+					if (index.add(fp, deadline)) {
+						loaded++;
+					}
+				}
+				catch (ReplayStore.FullException e) {
+					LOGGER.severe("Replay store full, journal not fully recovered");
+					break;
+				}
+			}
+		}
+		LOGGER.fine("head= "+h+", scanned= "+scanned+", loaded= "+loaded);
+		return loaded;
+	}
+
+	private static void createFile(Path path) throws IOException {
+		Path dir= path.toAbsolutePath().getParent();
+		if (dir != null) {
+			Files.createDirectories(dir);
+		}
+		try {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		catch (UnsupportedOperationException e) {
+			Files.createFile(path);
+		}
+	}
+
+	private static long nowSeconds() {
+		return System.currentTimeMillis() / 1000;
+	}
+
+	private static Path journalPath() {
+		String file= CatalinaProperties.getProperty(PROPERTY_FILE);
+		if (file == null || file.isBlank()) {
+			file= DEFAULT_FILE;
+		}
+		File f= new File(file.trim());
+		if (!f.isAbsolute()) {
+			f= new File(System.getProperty("catalina.base", "."), file.trim());
+		}
+		return f.toPath();
+	}
+
+	private static long readProperty(String name, long defaultValue) {
+		String value= CatalinaProperties.getProperty(name);
+		if (value != null) {
+			try {
+				long v= Long.parseLong(value.trim());
+				if (v >= 0) {
+					return v;
+				}
+			}
+			catch (Exception e) {
+				// fall through
+			}
+			Logger.getLogger(LOGGER_NAME).info("Value of property '"+name+"' invalid, using default "+defaultValue);
+		}
+		return defaultValue;
+	}
+}
@@ -0,0 +1,74 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.io.Closeable;
+
+/**
+ * Store of token ids (jti) seen within the time window of a token.
+ * Used by {@link Message} for replay detection, and closed with it.
+ */
+public interface ReplayStore extends Closeable {
+
+	/*
+	 * Add a token id, which is kept until deadline (epoch seconds)
+	 *
+	 * true  - If the id is new
+	 * false - If the id already exist
+	 *
+	 * Throws FullException if the id cannot be stored.
+	 */
+	boolean add(String id, long deadline);
+
+	/*
+	 * Number of ids currently stored
+	 */
+	int size();
+
+	/*
+	 * Max number of ids which can be stored, or -1 if not bounded
+	 */
+	int capacity();
+
+	/*
+	 * Release files, threads and sockets. The store is not used after it
+	 * is closed.
+	 */
+	@Override
+	default void close() {
+	}
+
+	/**
+	 * Thrown when a bounded store has no room for a new id. The token
+	 * must be rejected, as it cannot be checked for replay later.
+	 */
+	public static class FullException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public FullException(String message) {
+			super(message);
+		}
+	}
+}
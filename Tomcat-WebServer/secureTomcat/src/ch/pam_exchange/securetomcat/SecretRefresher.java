@@ -0,0 +1,230 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the secrets of hot aliases warm.
+ *
+ * The first request for an alias fetches the secret from PAM and makes the
+ * alias hot. The secret, or a value derived from it, is refreshed in the
+ * background before it expires and the new value is swapped in atomically.
+ * Request threads read the current value and do not wait for A2A, as long
+ * as the alias is used at least once per refresh interval. An alias not
+ * used during an interval is no longer refreshed and expires.
+ *
+ * Refresh times are spread with jitter, so aliases fetched together are
+ * not refreshed together.
+ */
+public class SecretRefresher<T> {
+
+	private static final double REFRESH_AT= 0.7;		// refresh after 70%-90% of the lifetime
+	private static final double REFRESH_JITTER= 0.2;
+	private static final double RETRY_AT= 0.05;		// retry a failed refresh after 5% of the lifetime
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat";
+	private final Logger LOGGER= Logger.getLogger(LOGGER_NAME);
+
+	private static final ScheduledExecutorService SCHEDULER= Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t= new Thread(r, "securetomcat-refresh");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Converts a secret to the value kept, e.g. a derived key
+	 */
+	public interface Transform<T> {
+		T apply(String secret) throws Exception;
+	}
+
+	private final PAM pam;
+	private final long ttlMillis;
+	private final int maxSize;
+	private final Transform<T> transform;
+	private final Map<String,Entry<T>> cache= new ConcurrentHashMap<>();
+
+	private static final class Entry<T> {
+		final T value;
+		final long created;
+		final long expires;
+		volatile long lastAccess;
+
+		Entry(T value, long created, long ttl) {
+			this.value= value;
+			this.created= created;
+			this.expires= created + ttl;
+			this.lastAccess= created;
+		}
+	}
+
+	public SecretRefresher(PAM pam, long ttlMillis, int maxSize, Transform<T> transform) {
+		this.pam= pam;
+		this.ttlMillis= ttlMillis;
+		this.maxSize= maxSize;
+		this.transform= transform;
+		LOGGER.fine("ttlMillis= "+ttlMillis+", maxSize= "+maxSize);
+	}
+
+	/*
+	 * Get the current value for an alias. If the alias is not warm, the 
+	 * secret is fetched from PAM (using the A2A cache).
+	 *
+	 * Returns null if the secret is not available.
+	 */
+	public T get(String alias) {
+		T value= peek(alias);
+		return (value != null) ? value : load(alias, false);
+	}
+
+	/*
+	 * Get the current value for an alias, if it is warm. Does not fetch.
+	 */
+	public T peek(String alias) {
+		Entry<T> e= cache.get(alias);
+		long now= System.currentTimeMillis();
+		if (e != null && e.expires > now) {
+			e.lastAccess= now;
+			return e.value;
+		}
+		return null;
+	}
+
+	/*
+	 * Fetch the secret again with bypassCache=true and replace the current 
+	 * value. The current value is kept while fetching, so concurrent callers
+	 * do not fetch as well.
+	 */
+	public T refetch(String alias) {
+		LOGGER.info("alias= '"+alias+"', refetch with bypassCache=true");
+		return load(alias, true);
+	}
+
+	public void invalidate(String alias) {
+		cache.remove(alias);
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	/*
+	 * Fetch the secret and keep the value. The wait for A2A is bounded 
+	 * by the deadline of getPasswordAsync.
+	 */
+	private T load(String alias, Boolean bypassCache) {
+		String secret= pam.getPasswordAsync(alias, bypassCache).join();
+		if (secret.startsWith("***")) {
+			LOGGER.severe("A password not available: '"+secret+"'");
+			return null;
+		}
+		LOGGER.info("A password found - OK");
+		try {
+			T value= transform.apply(secret);
+			put(alias, value);
+			return value;
+		}
+		catch (Exception e) {
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+			return null;
+		}
+	}
+
+	private void put(String alias, T value) {
+		if (!cache.containsKey(alias) && cache.size() >= maxSize) {
+			evictOldest();
+		}
+		Entry<T> e= new Entry<>(value, System.currentTimeMillis(), ttlMillis);
+		cache.put(alias, e);
+		scheduleRefresh(alias, e, refreshDelay());
+	}
+
+	/*
+	 * Remove the entry expiring first, making room for a new alias
+	 */
+	private void evictOldest() {
+		String oldest= null;
+		long oldestExpires= Long.MAX_VALUE;
+		for (Map.Entry<String,Entry<T>> e : cache.entrySet()) {
+			if (e.getValue().expires < oldestExpires) {
+				oldest= e.getKey();
+				oldestExpires= e.getValue().expires;
+			}
+		}
+		if (oldest != null) {
+			LOGGER.fine("evict alias= '"+oldest+"'");
+			cache.remove(oldest);
+		}
+	}
+
+	private long refreshDelay() {
+		double at= REFRESH_AT + ThreadLocalRandom.current().nextDouble() * REFRESH_JITTER;
+		return (long)(ttlMillis * at);
+	}
+
+	private void scheduleRefresh(String alias, Entry<T> e, long delay) {
+		SCHEDULER.schedule(() -> refresh(alias, e), delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void refresh(String alias, Entry<T> e) {
+		if (cache.get(alias) != e) {
+			// replaced or removed since scheduled
+			return;
+		}
+		if (e.lastAccess == e.created) {
+			LOGGER.fine("alias= '"+alias+"' not used, no refresh");
+			return;
+		}
+		pam.getPasswordAsync(alias, false).thenAccept(secret -> {
+			if (secret.startsWith("***")) {
+				// keep the current value until it expires, try again
+				long retry= (long)(ttlMillis * RETRY_AT);
+				LOGGER.warning("alias= '"+alias+"', refresh failed: '"+secret+"'");
+				if (System.currentTimeMillis() + retry < e.expires) {
+					scheduleRefresh(alias, e, retry);
+				}
+				return;
+			}
+			try {
+				Entry<T> refreshed= new Entry<>(transform.apply(secret), System.currentTimeMillis(), ttlMillis);
+				if (cache.replace(alias, e, refreshed)) {
+					LOGGER.fine("alias= '"+alias+"' refreshed");
+					scheduleRefresh(alias, refreshed, refreshDelay());
+				}
+			}
+			catch (Exception ex) {
+				LOGGER.log(Level.SEVERE, ex.getMessage(), ex);
+			}
+		});
+	}
+}
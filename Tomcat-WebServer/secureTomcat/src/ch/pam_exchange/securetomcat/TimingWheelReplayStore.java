@@ -0,0 +1,225 @@
+/*********************************************************************
+MIT License
+
+Copyright (c) 2024-2025 PAM-Exchange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*********************************************************************/
+
+package ch.pam_exchange.securetomcat;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+/**
+ * Replay store for token ids (jti).
+ *
+ * Ids are kept in a concurrent map, which gives an atomic check-and-add
+ * without a global lock. Each id is also put in a bucket of a timing wheel,
+ * one bucket per second, for the second where the id can be forgotten.
+ * Expiry drains whole buckets as the clock moves on, so the cost of cleaning
+ * up is proportional to the number of ids expiring and not to the number of
+ * ids stored.
+ *
+ * Ids retained longer than the wheel covers are kept in an overflow queue,
+ * which is checked once per second.
+ */
+public class TimingWheelReplayStore implements ReplayStore {
+
+	private static final long GRACE= 2;		// seconds a bucket is kept after its deadline
+
+	private static final String LOGGER_NAME= "ch.pam_exchange.securetomcat";
+	private final Logger LOGGER= Logger.getLogger(LOGGER_NAME);
+
+	private final ConcurrentHashMap<String,Long> ids= new ConcurrentHashMap<>();
+	private final AtomicReferenceArray<Bucket> wheel;
+	private final int span;
+	private final Queue<Overflow> overflow= new ConcurrentLinkedQueue<>();
+	private final AtomicLong expiredUpTo;
+	private final AtomicBoolean expiring= new AtomicBoolean(false);
+
+	private static final class Bucket {
+		final long second;
+		final Queue<String> ids= new ConcurrentLinkedQueue<>();
+		volatile boolean drained= false;
+
+		Bucket(long second) {
+			this.second= second;
+		}
+	}
+
+	private static final class Overflow {
+		final String id;
+		final long deadline;
+
+		Overflow(String id, long deadline) {
+			this.id= id;
+			this.deadline= deadline;
+		}
+	}
+
+	/*
+	 * The wheel covers twice the time window, which is enough for the
+	 * deadlines of tokens accepted within the time window.
+	 */
+	public TimingWheelReplayStore(long timeWindow) {
+		span= (int)Math.max(16, 2 * (timeWindow + GRACE));
+		wheel= new AtomicReferenceArray<>(span);
+		expiredUpTo= new AtomicLong(now() - GRACE);
+		LOGGER.fine("span= "+span);
+	}
+
+	/*
+	 * Add a token id, which is kept until deadline (epoch seconds)
+	 *
+	 * true  - If the id is new
+	 * false - If the id already exist
+	 */
+	@Override
+	public boolean add(String id, long deadline) {
+		long now= now();
+		expire(now);
+
+		if (deadline < now) {
+			deadline= now;
+		}
+		if (ids.putIfAbsent(id, deadline) != null) {
+			return false;
+		}
+
+		Bucket b= (deadline - now < span - GRACE - 1) ? bucketFor(deadline) : null;
+		if (b == null) {
+			overflow.add(new Overflow(id, deadline));
+			return true;
+		}
+		b.ids.add(id);
+		if (b.drained) {
+			// The bucket was expired while adding, the deadline has passed
+			ids.remove(id, deadline);
+		}
+		return true;
+	}
+
+	public boolean contains(String id) {
+		return ids.containsKey(id);
+	}
+
+	/*
+	 * Ids stored with their deadline. A view, ids added or expired while 
+	 * iterating may or may not be seen.
+	 */
+	public Set<Map.Entry<String,Long>> entries() {
+		return Collections.unmodifiableMap(ids).entrySet();
+	}
+
+	@Override
+	public int size() {
+		return ids.size();
+	}
+
+	@Override
+	public int capacity() {
+		return -1;
+	}
+
+	/*
+	 * Get the bucket for a deadline. A bucket left in the slot from a
+	 * previous turn of the wheel is drained before it is replaced.
+	 */
+	private Bucket bucketFor(long deadline) {
+		int slot= (int)(deadline % span);
+		for (;;) {
+			Bucket b= wheel.get(slot);
+			if (b != null && b.second == deadline) {
+				return b;
+			}
+			if (b != null && b.second > deadline) {
+				return null;
+			}
+			Bucket nb= new Bucket(deadline);
+			if (wheel.compareAndSet(slot, b, nb)) {
+				if (b != null) {
+					drain(b);
+				}
+				return nb;
+			}
+		}
+	}
+
+	/*
+	 * Drain all buckets with a deadline up to now-GRACE. Only one thread
+	 * expires at a time, others continue without waiting.
+	 */
+	private void expire(long now) {
+		long cutoff= now - GRACE;
+		long last= expiredUpTo.get();
+		if (last >= cutoff || !expiring.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			int drained= 0;
+			for (long s= Math.max(last + 1, cutoff - span + 1); s <= cutoff; s++) {
+				int slot= (int)(s % span);
+				Bucket b= wheel.get(slot);
+				if (b != null && b.second <= s && wheel.compareAndSet(slot, b, null)) {
+					drained+= drain(b);
+				}
+			}
+			for (Iterator<Overflow> it= overflow.iterator(); it.hasNext(); ) {
+				Overflow o= it.next();
+				if (o.deadline <= cutoff) {
+					ids.remove(o.id, o.deadline);
+					it.remove();
+					drained++;
+				}
+			}
+			expiredUpTo.set(cutoff);
+			if (drained > 0) {
+				LOGGER.fine("cutoff= "+cutoff+", expired= "+drained+", size= "+ids.size());
+			}
+		}
+		finally {
+			expiring.set(false);
+		}
+	}
+
+	private int drain(Bucket b) {
+		b.drained= true;
+		int n= 0;
+		String id;
+		while ((id= b.ids.poll()) != null) {
+			ids.remove(id, b.second);
+			n++;
+		}
+		return n;
+	}
+
+	private static long now() {
+		return System.currentTimeMillis() / 1000;
+	}
+}